@@ -0,0 +1,144 @@
+package bench;
+
+import server.SmtpStandIn;
+import utils.Outbox;
+import utils.OutboxDelivery;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end check of referral email delivery against the in-process SmtpStandIn
+ * Queues messages in an outbox in a temporary directory, every tenth to a
+ * recipient the server refuses, and delivers them. Every accepted message must
+ * arrive once with its body intact, every refused one must fail for good, and
+ * a reopened outbox must have nothing left to send. A second round stops the
+ * delivery while it is sending and checks the outbox still reopens with every
+ * message either delivered or pending. The data files are not touched.
+ * Exits 1 on failure.
+ *
+ * Usage: java bench.DeliveryCheck [messages]
+ */
+public class DeliveryCheck {
+    private static final long TIMEOUT_MILLIS = 60_000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        Path dir = Files.createTempDirectory("delivery-check");
+        boolean ok;
+        try (SmtpStandIn smtp = new SmtpStandIn(0).start()) {
+            smtp.refuse(recipient -> recipient.startsWith("refused"));
+            ok = deliverAll(dir.resolve("all"), smtp, messages) & stopWhileSending(dir.resolve("stop"), smtp, messages);
+        } finally {
+            delete(dir);
+        }
+        System.out.println(ok ? "PASSED" : "FAILED");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean deliverAll(Path dir, SmtpStandIn smtp, int messages) throws IOException, InterruptedException {
+        int before = smtp.count();
+        Outbox outbox = fill(dir, messages);
+        long start = System.nanoTime();
+        OutboxDelivery delivery = new OutboxDelivery(outbox, "127.0.0.1", smtp.getPort()).start();
+        boolean drained = waitForPending(outbox, 0);
+        long elapsed = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        delivery.stop();
+        Outbox.Stats stats = outbox.getStats();
+        outbox.close();
+
+        int refused = (messages + 9) / 10;
+        boolean ok = drained && stats.delivered == messages - refused && stats.failed == refused
+                && smtp.count() - before == messages - refused;
+        // Every message has its own body, so each received one can be matched to what was queued
+        int intact = 0;
+        for (SmtpStandIn.Received r : smtp.getReceived().subList(before, smtp.count())) {
+            String id = messageID(r.content);
+            if (r.content.endsWith("\n\n" + body(id))
+                    && r.recipients.size() == 1 && r.recipients.get(0).equals(recipient(id))) {
+                intact++;
+            }
+        }
+        ok &= intact == messages - refused;
+
+        Outbox reopened = new Outbox(dir.toString());
+        ok &= reopened.getStats().pending == 0;
+        reopened.close();
+        System.out.println("deliver: " + stats.delivered + " delivered, " + stats.failed + " refused, " + intact
+                + " intact, " + (messages - refused) * 1000L / elapsed + " per second over "
+                + delivery.getConnections() + " connections");
+        return ok;
+    }
+
+    private static boolean stopWhileSending(Path dir, SmtpStandIn smtp, int messages) throws IOException, InterruptedException {
+        int before = smtp.count();
+        Outbox outbox = fill(dir, messages);
+        OutboxDelivery delivery = new OutboxDelivery(outbox, "127.0.0.1", smtp.getPort()).start();
+        boolean started = waitForPending(outbox, messages - 1);
+        delivery.stop();
+        Outbox.Stats stopped = outbox.getStats();
+        outbox.close();
+
+        Outbox reopened = new Outbox(dir.toString());
+        Outbox.Stats stats = reopened.getStats();
+        reopened.close();
+        long received = smtp.count() - before;
+        // At least once: anything the server accepted is delivered or still pending, nothing is lost
+        boolean ok = started && stats.pending == stopped.pending && stats.delivered == stopped.delivered
+                && stats.delivered + stats.failed + stats.pending == messages && received >= stats.delivered;
+        System.out.println("stop: " + stats.delivered + " delivered, " + stats.pending + " pending after reopening, "
+                + received + " received");
+        return ok;
+    }
+
+    private static Outbox fill(Path dir, int messages) throws IOException {
+        Outbox outbox = new Outbox(dir.toString());
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        for (int i = 0; i < messages; i++) {
+            String id = "M" + i;
+            byte[] body = body(id).getBytes(StandardCharsets.UTF_8);
+            outbox.append(id, "check@healthcare.local", recipient(id), "Check " + id,
+                          (channel, buf) -> channel.write(ByteBuffer.wrap(body)), buffer);
+        }
+        return outbox;
+    }
+
+    // Wait until no more than this many messages are pending, false if that takes too long
+    private static boolean waitForPending(Outbox outbox, long most) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (outbox.getStats().pending > most) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    // The outbox ID from the Message-ID header, <id@healthcare.local>
+    private static String messageID(String content) {
+        int start = content.indexOf("Message-ID: <") + "Message-ID: <".length();
+        return content.substring(start, content.indexOf('@', start));
+    }
+
+    private static String recipient(String id) {
+        return (Integer.parseInt(id.substring(1)) % 10 == 0 ? "refused" : "clinician") + id + "@hospital.com";
+    }
+
+    // Lines starting with a dot exercise the dot-stuffing of DATA
+    private static String body(String id) {
+        return "Referral " + id + "\n.starts with a dot\n..two dots\nünïcödé\n";
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package bench;
+
+import models.Appointment;
+import models.Patient;
+import utils.CSVHandler;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Benchmark of the memory-mapped CSV loaders against the BufferedReader and split() ones
+ * Writes patient and appointment files of the given size to a temporary directory,
+ * loads each several times with both loaders and prints rows per second, bytes
+ * allocated per row and the heap the loaded rows keep. Appointments repeat their
+ * patient, clinician, date, time and status values the way real bookings do,
+ * which is what the mapped loaders' per-column dictionaries are for.
+ * The data files are not touched. Exits 1 if the two loaders disagree.
+ *
+ * Usage: java bench.LoaderBench [rows] [rounds]
+ */
+public class LoaderBench {
+    private static final String[] STATUSES = {"Scheduled", "Completed", "Cancelled"};
+
+    public static void main(String[] args) throws IOException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Path dir = Files.createTempDirectory("loader-bench");
+        Path patients = dir.resolve("patients.csv");
+        Path appointments = dir.resolve("appointments.csv");
+        try {
+            writeFiles(patients, appointments, rows);
+            boolean ok = compare("patients", patients, rounds, CSVHandler::loadPatients,
+                                 CSVHandler::loadPatientsMapped, Patient::toCSV);
+            ok &= compare("appointments", appointments, rounds, CSVHandler::loadAppointments,
+                          CSVHandler::loadAppointmentsMapped, Appointment::toCSV);
+            System.out.println(ok ? "PASSED" : "FAILED");
+            if (!ok) {
+                System.exit(1);
+            }
+        } finally {
+            Files.deleteIfExists(patients);
+            Files.deleteIfExists(appointments);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static <T> boolean compare(String what, Path file, int rounds, Function<String, List<T>> split,
+                                       Function<String, List<T>> mapped, Function<T, String> toCSV) {
+        System.out.printf("%s, %,d bytes, %d processors:%n", what, file.toFile().length(),
+                          Runtime.getRuntime().availableProcessors());
+        List<T> a = time("  split ", file, rounds, split);
+        List<T> b = time("  mapped", file, rounds, mapped);
+        boolean same = a.size() == b.size();
+        for (int i = 0; same && i < a.size(); i++) {
+            same = toCSV.apply(a.get(i)).equals(toCSV.apply(b.get(i)));
+        }
+        if (!same) {
+            System.out.println("  loaders disagree");
+        }
+        return same;
+    }
+
+    // Best of the rounds; the heap in use is measured around the last load to weigh what it keeps
+    private static <T> List<T> time(String label, Path file, int rounds, Function<String, List<T>> loader) {
+        long bestNanos = Long.MAX_VALUE;
+        long allocated = 0;
+        long retained = 0;
+        List<T> rows = null;
+        for (int round = 0; round < rounds; round++) {
+            rows = null;
+            long heap = round == rounds - 1 ? usedHeap() : 0;
+            long before = allocatedBytes();
+            long start = System.nanoTime();
+            rows = loader.apply(file.toString());
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+            allocated = allocatedBytes() - before;
+            retained = round == rounds - 1 ? usedHeap() - heap : 0;
+        }
+        int count = Math.max(1, rows.size());
+        System.out.printf("%s %,10d rows/s, %4d bytes allocated per row, %4d bytes retained per row%n",
+                          label, (long) (rows.size() / (bestNanos / 1e9)), allocated / count, retained / count);
+        return rows;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Allocated so far by all live threads; the mapped loaders parse large files on the common pool
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(0, bytes);
+        }
+        return total;
+    }
+
+    private static void writeFiles(Path patients, Path appointments, int rows) throws IOException {
+        Random random = new Random(1);
+        try (BufferedWriter out = Files.newBufferedWriter(patients, StandardCharsets.UTF_8)) {
+            out.write(CSVHandler.PATIENTS_HEADER);
+            out.newLine();
+            for (int i = 0; i < rows; i++) {
+                out.write("P" + i + ",Patient " + i + "," + random.nextInt(90) + "," + (i % 2 == 0 ? "Male" : "Female")
+                          + ",0300" + (1_000_000 + i) + ",City " + random.nextInt(200) + ",None");
+                out.newLine();
+            }
+        }
+        try (BufferedWriter out = Files.newBufferedWriter(appointments, StandardCharsets.UTF_8)) {
+            out.write(CSVHandler.APPOINTMENTS_HEADER);
+            out.newLine();
+            for (int i = 0; i < rows; i++) {
+                int slot = 16 + random.nextInt(18);
+                out.write("A" + i + ",P" + random.nextInt(rows / 5 + 1) + ",C" + random.nextInt(500)
+                          + String.format(",2025-%02d-%02d,%02d:%02d", 1 + random.nextInt(12), 1 + random.nextInt(28),
+                                          slot / 2, slot % 2 * 30)
+                          + "," + STATUSES[random.nextInt(STATUSES.length)]);
+                out.newLine();
+            }
+        }
+    }
+}
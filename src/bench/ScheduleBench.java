@@ -0,0 +1,84 @@
+package bench;
+
+import models.Appointment;
+import models.AppointmentSchedule;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmark of the double-booking check as the number of appointments grows
+ * For each size it books that many random half-hour Scheduled appointments over
+ * a year with 500 clinicians, then times AppointmentSchedule.conflicts() for
+ * 100,000 new appointments against them. The time per check should stay about
+ * the same from ten thousand to millions of appointments; a scan of all
+ * appointments for one clinician and day is timed alongside for comparison.
+ * Works on in-memory data only, the data files are not touched.
+ *
+ * Usage: java bench.ScheduleBench [largest number of appointments]
+ */
+public class ScheduleBench {
+    private static final int CLINICIANS = 500;
+    private static final int CHECKS = 100_000;
+    private static final int SCANS = 20;
+    private static final LocalDate FIRST_DAY = LocalDate.of(2025, 1, 1);
+
+    public static void main(String[] args) {
+        int largest = args.length > 0 ? Integer.parseInt(args[0]) : 3_000_000;
+        Random random = new Random(1);
+        for (int size = 10_000; size < largest; size *= 10) {
+            run(size, random);
+        }
+        run(largest, random);
+    }
+
+    private static void run(int size, Random random) {
+        List<Appointment> booked = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            booked.add(appointment("A" + i, "P" + random.nextInt(size / 5 + 1),
+                                   "C" + random.nextInt(CLINICIANS), random.nextInt(365), 16 + random.nextInt(18)));
+        }
+        long start = System.nanoTime();
+        AppointmentSchedule schedule = AppointmentSchedule.of(booked);
+        long build = (System.nanoTime() - start) / 1_000_000;
+
+        // New bookings at 12:15 on days and with clinicians that already have appointments
+        List<Appointment> checks = new ArrayList<>(CHECKS);
+        for (int i = 0; i < CHECKS; i++) {
+            Appointment near = booked.get(random.nextInt(size));
+            checks.add(new Appointment("X" + i, "P" + random.nextInt(size / 5 + 1), near.getClinicianID(),
+                                       near.getDate(), "12:15", "Scheduled"));
+        }
+        long conflicts = 0;
+        for (int round = 0; round < 3; round++) { // warm-up
+            for (Appointment a : checks) {
+                conflicts += schedule.conflicts(a).size();
+            }
+        }
+        start = System.nanoTime();
+        for (Appointment a : checks) {
+            conflicts += schedule.conflicts(a).size();
+        }
+        long perCheck = (System.nanoTime() - start) / CHECKS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < SCANS; i++) {
+            Appointment a = checks.get(i);
+            for (Appointment b : booked) {
+                if (b.getClinicianID().equals(a.getClinicianID()) && b.getDate().equals(a.getDate())) {
+                    conflicts++;
+                }
+            }
+        }
+        long perScan = (System.nanoTime() - start) / SCANS;
+        System.out.printf("%,d appointments: built in %d ms, %d ns per check, %,d ns per linear scan (%d matches)%n",
+                          size, build, perCheck, perScan, conflicts);
+    }
+
+    // Half-hour appointment in the given slot of the day, slot 16 being 08:00
+    private static Appointment appointment(String id, String patientID, String clinicianID, int day, int slot) {
+        String time = String.format("%02d:%02d", slot / 2, slot % 2 * 30);
+        return new Appointment(id, patientID, clinicianID, FIRST_DAY.plusDays(day).toString(), time, "Scheduled");
+    }
+}
@@ -0,0 +1,161 @@
+package bench;
+
+import models.Patient;
+import utils.EntityStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stress check that EntityStore loses no updates under concurrent readers and writers
+ * Counters: threads increment shared rows with compute() alongside lookups,
+ * snapshots and index counts; the total must equal the number of increments.
+ * CRUD: threads add, update and delete rows of their own, and the store, an
+ * index and a listener-maintained count must all agree with what each thread did.
+ * Works on in-memory stores only, the data files are not touched. Exits 1 on failure.
+ *
+ * Usage: java bench.StoreStress [threads] [operations per thread]
+ */
+public class StoreStress {
+    private static final int COUNTERS = 64;
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+        boolean ok = counters(threads, operations) & crud(threads, operations);
+        System.out.println(ok ? "PASSED" : "FAILED");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean counters(int threads, int operations) throws InterruptedException {
+        List<Patient> rows = new ArrayList<>();
+        for (int i = 0; i < COUNTERS; i++) {
+            rows.add(patient("C" + i, "counter", 0));
+        }
+        EntityStore<Patient> store = new EntityStore<>(rows, Patient::getPatientID);
+        EntityStore<Patient>.Index<String> byGender = store.addIndex(Patient::getGender, false);
+        long[] changes = new long[1]; // written under the store's write lock
+        store.addListener((old, item) -> changes[0]++);
+
+        long start = System.nanoTime();
+        run(threads, t -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < operations; i++) {
+                String id = "C" + random.nextInt(COUNTERS);
+                store.compute(id, p -> patient(id, "counter", p.getAge() + 1));
+                switch (i % 8) {
+                    case 0: check(store.find(id) != null, "find " + id); break;
+                    case 1: check(store.snapshot().size() == COUNTERS, "snapshot size"); break;
+                    case 2: check(byGender.count("X") == COUNTERS, "index count"); break;
+                    default: break;
+                }
+            }
+        });
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+
+        long expected = (long) threads * operations;
+        long total = 0;
+        for (Patient p : store.snapshot()) {
+            total += p.getAge();
+        }
+        System.out.println("compute: " + total + " of " + expected + " increments, " + changes[0]
+                + " listener calls, " + elapsed + " ms");
+        return total == expected && changes[0] == expected;
+    }
+
+    private static boolean crud(int threads, int operations) throws InterruptedException {
+        EntityStore<Patient> store = new EntityStore<>(new ArrayList<>(), Patient::getPatientID);
+        EntityStore<Patient>.Index<String> byName = store.addIndex(Patient::getName, false);
+        long[] live = new long[1]; // inserts minus deletes seen by the listener, under the write lock
+        store.addListener((old, item) -> live[0] += (item != null ? 1 : 0) - (old != null ? 1 : 0));
+        // Each thread's expected rows: ID to age
+        Map<String, Integer> expected = new ConcurrentHashMap<>();
+
+        long start = System.nanoTime();
+        run(threads, t -> {
+            String name = "T" + t;
+            for (int i = 0; i < operations; i++) {
+                String id = name + "-" + (i / 3);
+                switch (i % 3) {
+                    case 0:
+                        store.add(patient(id, name, 0));
+                        expected.put(id, 0);
+                        break;
+                    case 1:
+                        check(store.update(id, patient(id, name, i)) != null, "update " + id);
+                        expected.put(id, i);
+                        break;
+                    default:
+                        // Delete every other row, keep the rest
+                        if ((i / 3) % 2 == 0) {
+                            check(store.remove(id) != null, "remove " + id);
+                            expected.remove(id);
+                        }
+                        break;
+                }
+            }
+        });
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+
+        boolean ok = store.size() == expected.size() && live[0] == expected.size();
+        for (Map.Entry<String, Integer> e : expected.entrySet()) {
+            Patient p = store.find(e.getKey());
+            ok &= p != null && p.getAge() == e.getValue();
+        }
+        int indexed = 0;
+        for (int t = 0; t < threads; t++) {
+            indexed += byName.count("T" + t);
+        }
+        ok &= indexed == expected.size();
+        System.out.println("crud: " + store.size() + " rows, " + expected.size() + " expected, " + live[0]
+                + " by listener, " + indexed + " indexed, " + elapsed + " ms");
+        return ok;
+    }
+
+    // Run the body on each thread at once, failing if any thread threw
+    private static void run(int threads, ThreadBody body) throws InterruptedException {
+        CountDownLatch ready = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    ready.await();
+                    body.run(index);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }, "stress-" + t);
+            worker.start();
+            workers.add(worker);
+        }
+        ready.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Worker failed: " + failure.get(), failure.get());
+        }
+    }
+
+    private interface ThreadBody {
+        void run(int thread) throws Exception;
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new IllegalStateException("Check failed: " + what);
+        }
+    }
+
+    private static Patient patient(String id, String name, int age) {
+        return new Patient(id, name, age, "X", "", "", "");
+    }
+}
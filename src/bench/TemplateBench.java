@@ -0,0 +1,118 @@
+package bench;
+
+import models.Referral;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+/**
+ * Benchmark of referral email rendering: the compiled template against building the text per call
+ * Renders the same referral many times three ways and prints nanoseconds and
+ * bytes allocated per email:
+ *   per call   the layout the template replaced, a new DateTimeFormatter and StringBuilder each time, then encoded
+ *   String     Referral.generateEmailContent(), as the preview uses it
+ *   channel    Referral.writeEmail() through one reused buffer, as the outbox uses it
+ * All three must produce the same bytes. Reads the referral file through
+ * Referral.getInstance() but writes nothing. Exits 1 if the outputs differ.
+ *
+ * Usage: java bench.TemplateBench [emails per round] [rounds]
+ */
+public class TemplateBench {
+    private static long sink;
+
+    public static void main(String[] args) throws IOException {
+        int emails = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        Referral referrals = Referral.getInstance();
+        Referral.ReferralData referral = new Referral.ReferralData("REF0042", "P001", "Jane Émile Doe", "C001", "C002",
+            "Persistent cough for three weeks, café worker", LocalDateTime.of(2026, 3, 4, 5, 6, 7));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        byte[] expected = perCall(referral).getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        referrals.writeEmail(referral, Channels.newChannel(written), buffer);
+        boolean ok = Arrays.equals(expected, referrals.generateEmailContent(referral).getBytes(StandardCharsets.UTF_8))
+                && Arrays.equals(expected, written.toByteArray());
+        if (!ok) {
+            System.out.println("FAILED: the template does not render the same text");
+            System.exit(1);
+        }
+
+        // Counts the bytes and drops them
+        WritableByteChannel discard = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int n = src.remaining();
+                src.position(src.limit());
+                sink += n;
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        for (int round = 1; round <= rounds; round++) {
+            long bytes0 = allocatedBytes();
+            long time0 = System.nanoTime();
+            for (int i = 0; i < emails; i++) {
+                discard.write(ByteBuffer.wrap(perCall(referral).getBytes(StandardCharsets.UTF_8)));
+            }
+            long time1 = System.nanoTime();
+            long bytes1 = allocatedBytes();
+            for (int i = 0; i < emails; i++) {
+                sink += referrals.generateEmailContent(referral).length();
+            }
+            long time2 = System.nanoTime();
+            long bytes2 = allocatedBytes();
+            for (int i = 0; i < emails; i++) {
+                referrals.writeEmail(referral, discard, buffer);
+            }
+            long time3 = System.nanoTime();
+            long bytes3 = allocatedBytes();
+            System.out.printf("round %d: per call %d ns %d B | String %d ns %d B | channel %d ns %d B per email%n",
+                              round, (time1 - time0) / emails, (bytes1 - bytes0) / emails,
+                              (time2 - time1) / emails, (bytes2 - bytes1) / emails,
+                              (time3 - time2) / emails, (bytes3 - bytes2) / emails);
+        }
+        System.out.println("PASSED (" + sink + " bytes rendered)");
+    }
+
+    // The email as it was built before the template, kept here as the baseline
+    private static String perCall(Referral.ReferralData referral) {
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        StringBuilder email = new StringBuilder();
+        email.append("===============================================\n");
+        email.append("         MEDICAL REFERRAL NOTIFICATION\n");
+        email.append("===============================================\n\n");
+        email.append("Referral ID: ").append(referral.referralID).append("\n");
+        email.append("Date & Time: ").append(referral.timestamp.format(formatter)).append("\n\n");
+        email.append("TO: Clinician ").append(referral.toClinicianID).append("\n");
+        email.append("FROM: Clinician ").append(referral.fromClinicianID).append("\n\n");
+        email.append("PATIENT INFORMATION:\n");
+        email.append("- Patient ID: ").append(referral.patientID).append("\n");
+        email.append("- Patient Name: ").append(referral.patientName).append("\n\n");
+        email.append("REFERRAL REASON:\n");
+        email.append(referral.reason).append("\n\n");
+        email.append("Please review this referral and schedule an appointment at your earliest convenience.\n\n");
+        email.append("===============================================\n");
+        return email.toString();
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
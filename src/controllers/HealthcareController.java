@@ -1,195 +1,956 @@
 package controllers;
 
 import models.*;
+import utils.BulkImporter;
+import utils.CSVExporter;
 import utils.CSVHandler;
+import utils.ChangeJournal;
+import utils.EmailDispatcher;
+import utils.EntityStore;
+import utils.IdSequence;
+import utils.LazyLoad;
+import utils.Outbox;
+import utils.OutboxDelivery;
+import utils.SnapshotFile;
+import utils.WriteBehindFlusher;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 /**
  * Controller class - MVC Pattern
  * Manages business logic and data operations
  */
 public class HealthcareController {
-    private List<Patient> patients;
-    private List<Clinician> clinicians;
-    private List<Appointment> appointments;
-    private List<Prescription> prescriptions;
+    /**
+     * How mutations reach the CSV files.
+     * REWRITE saves the whole file on every change,
+     * JOURNAL appends the change to a journal that is compacted in the background,
+     * WRITE_BEHIND marks the file dirty and saves it from a background thread,
+     * coalescing bursts of changes into one save.
+     */
+    public enum PersistenceMode { REWRITE, JOURNAL, WRITE_BEHIND }
+
+    private LazyLoad<EntityStore<Patient>> patients;
+    private LazyLoad<EntityStore<Clinician>> clinicians;
+    private LazyLoad<EntityStore<Appointment>> appointments;
+    private LazyLoad<EntityStore<Prescription>> prescriptions;
     
     // File paths
     private static final String PATIENTS_FILE = "data/patients.csv";
     private static final String CLINICIANS_FILE = "data/clinicians.csv";
     private static final String APPOINTMENTS_FILE = "data/appointments.csv";
     private static final String PRESCRIPTIONS_FILE = "data/prescriptions.csv";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String SEQUENCE_SUFFIX = ".seq";
+    
+    // Journal entries per entity before the CSV file is rewritten
+    private static final int COMPACTION_THRESHOLD = 500;
+    
+    // Default write-behind policy: save at most this long after a change, or after this many changes
+    private static final long DEFAULT_FLUSH_WINDOW_MILLIS = 500;
+    private static final int DEFAULT_FLUSH_BATCH_SIZE = 100;
+    
+    // Referral email writers, and the emails that may wait for them before createReferral() blocks
+    private static final int EMAIL_THREADS = 2;
+    private static final int EMAIL_QUEUE_CAPACITY = 4096;
+    
+    private static final String OUTBOX_DIR = "output/outbox";
+    private static final String REFERRAL_SENDER = "referrals@hospital.com";
+    // System property with the SMTP server referral emails go to, as host:port
+    public static final String SMTP_PROPERTY = "healthcare.smtp";
+    
+    // Files larger than this are not loaded at startup, only on first access
+    private static final long LAZY_LOAD_THRESHOLD = 32L * 1024 * 1024;
+    
+    private final PersistenceMode mode;
+    private final ExecutorService loadExecutor;
+    private ExecutorService compactionExecutor;
+    private WriteBehindFlusher writeBehind;
+    // Secondary indexes, built when their entity set is loaded; dates index as ISO text, which sorts by date
+    private EntityStore<Appointment>.Index<String> appointmentsByClinician;
+    private EntityStore<Appointment>.Index<String> appointmentsByPatient;
+    private EntityStore<Appointment>.Index<String> appointmentsByDate;
+    private EntityStore<Prescription>.Index<String> prescriptionsByPatient;
+    private EntityStore<Prescription>.Index<String> prescriptionsByClinician;
+    private EntityStore<Clinician>.Index<String> cliniciansBySpecialization; // lower case
+    // Booked time per clinician and patient, kept in sync with the appointments
+    private AppointmentSchedule appointmentSchedule;
+    // Open referrals and booked appointments per clinician, built on first routing and kept in sync
+    private volatile ClinicianLoad clinicianLoad;
+    private final Object clinicianLoadLock = new Object();
+    // Columnar copy of the appointments for reports, built on first use and kept in sync
+    private volatile AppointmentColumnStore appointmentColumns;
+    private ChangeJournal<Patient> patientJournal;
+    private ChangeJournal<Clinician> clinicianJournal;
+    private ChangeJournal<Appointment> appointmentJournal;
+    private ChangeJournal<Prescription> prescriptionJournal;
+    private final SnapshotFile<Patient> patientSnapshot = SnapshotFile.patients(PATIENTS_FILE);
+    private final SnapshotFile<Clinician> clinicianSnapshot = SnapshotFile.clinicians(CLINICIANS_FILE);
+    private final SnapshotFile<Appointment> appointmentSnapshot = SnapshotFile.appointments(APPOINTMENTS_FILE);
+    private final SnapshotFile<Prescription> prescriptionSnapshot = SnapshotFile.prescriptions(PRESCRIPTIONS_FILE);
+    // Next-ID sequences, raised to the highest ID in the data once it is loaded
+    private final IdSequence patientIds = new IdSequence(PATIENTS_FILE + SEQUENCE_SUFFIX, "P", 3);
+    private final IdSequence clinicianIds = new IdSequence(CLINICIANS_FILE + SEQUENCE_SUFFIX, "C", 3);
+    private final IdSequence appointmentIds = new IdSequence(APPOINTMENTS_FILE + SEQUENCE_SUFFIX, "A", 3);
+    private final IdSequence prescriptionIds = new IdSequence(PRESCRIPTIONS_FILE + SEQUENCE_SUFFIX, "PR", 3);
+    // Referral emails are rendered in the background into the outbox, and sent from it once delivery is started
+    private final Outbox referralOutbox; // null if it could not be opened
+    private OutboxDelivery referralDelivery;
+    private final EmailDispatcher<Referral.ReferralData> referralEmails = new EmailDispatcher<>("referral-email",
+        this::appendReferralEmail, EMAIL_THREADS, EMAIL_QUEUE_CAPACITY);
     
     // Constructor
     public HealthcareController() {
+        this(PersistenceMode.JOURNAL);
+    }
+    
+    public HealthcareController(PersistenceMode mode) {
+        this(mode, DEFAULT_FLUSH_WINDOW_MILLIS, DEFAULT_FLUSH_BATCH_SIZE);
+    }
+    
+    /**
+     * @param flushWindowMillis WRITE_BEHIND only: longest delay between a change and its save
+     * @param flushBatchSize    WRITE_BEHIND only: pending changes that force an immediate save
+     */
+    public HealthcareController(PersistenceMode mode, long flushWindowMillis, int flushBatchSize) {
+        this.mode = mode;
+        this.loadExecutor = Executors.newFixedThreadPool(4, r -> {
+            Thread t = new Thread(r, "csv-load");
+            t.setDaemon(true);
+            return t;
+        });
+        if (mode == PersistenceMode.JOURNAL) {
+            openJournals();
+        } else if (mode == PersistenceMode.WRITE_BEHIND) {
+            openWriteBehind(flushWindowMillis, flushBatchSize);
+        }
+        referralOutbox = openOutbox();
         loadAllData();
     }
     
-    // Load all data from CSV files
+    private static Outbox openOutbox() {
+        try {
+            return new Outbox(OUTBOX_DIR);
+        } catch (IOException e) {
+            System.err.println("Error opening outbox: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    // Load the four CSV files concurrently; large files wait until they are first used
     private void loadAllData() {
-        patients = CSVHandler.loadPatients(PATIENTS_FILE);
-        clinicians = CSVHandler.loadClinicians(CLINICIANS_FILE);
-        appointments = CSVHandler.loadAppointments(APPOINTMENTS_FILE);
-        prescriptions = CSVHandler.loadPrescriptions(PRESCRIPTIONS_FILE);
+        patients = load(PATIENTS_FILE, () -> CSVHandler.loadPatientsMapped(PATIENTS_FILE),
+                        patientSnapshot, patientJournal, patientIds, Patient::getPatientID, null);
+        clinicians = load(CLINICIANS_FILE, () -> CSVHandler.loadCliniciansMapped(CLINICIANS_FILE),
+                          clinicianSnapshot, clinicianJournal, clinicianIds, Clinician::getClinicianID,
+                          store -> {
+                              cliniciansBySpecialization = store.addIndex(HealthcareController::specializationKey, false);
+                              store.addListener(this::syncClinicianLoad);
+                          });
+        appointments = load(APPOINTMENTS_FILE, () -> CSVHandler.loadAppointmentsMapped(APPOINTMENTS_FILE),
+                            appointmentSnapshot, appointmentJournal, appointmentIds, Appointment::getAppointmentID,
+                            store -> {
+                                appointmentsByClinician = store.addIndex(Appointment::getClinicianID, false);
+                                appointmentsByPatient = store.addIndex(Appointment::getPatientID, false);
+                                appointmentsByDate = store.addIndex(Appointment::getDate, true);
+                                store.addListener(this::syncAppointmentColumns);
+                                store.addListener(this::syncClinicianLoad);
+                                appointmentSchedule = store.read(AppointmentSchedule::of);
+                                store.addListener(this::syncAppointmentSchedule);
+                            });
+        prescriptions = load(PRESCRIPTIONS_FILE, () -> CSVHandler.loadPrescriptionsMapped(PRESCRIPTIONS_FILE),
+                             prescriptionSnapshot, prescriptionJournal, prescriptionIds,
+                             Prescription::getPrescriptionID,
+                             store -> {
+                                 prescriptionsByPatient = store.addIndex(Prescription::getPatientID, false);
+                                 prescriptionsByClinician = store.addIndex(Prescription::getClinicianID, false);
+                             });
+    }
+    
+    private <T> LazyLoad<EntityStore<T>> load(String file, Supplier<List<T>> loader,
+                                       SnapshotFile<T> snapshot, ChangeJournal<T> journal,
+                                       IdSequence ids, Function<T, String> idOf,
+                                       Consumer<EntityStore<T>> indexer) {
+        Supplier<EntityStore<T>> loadAndReplay = () -> {
+            // A fresh binary snapshot is much cheaper to read than the CSV file
+            List<T> list = snapshot.load();
+            if (list == null) {
+                list = loader.get();
+            }
+            if (journal != null) {
+                // Replay changes not yet compacted into the CSV file
+                journal.replay(list);
+            }
+            // The CSV may have been edited by hand since the sequence was saved
+            for (T item : list) {
+                ids.observe(idOf.apply(item));
+            }
+            EntityStore<T> store = new EntityStore<>(list, idOf);
+            if (journal != null) {
+                store.addListener(journalListener(journal, idOf));
+            }
+            if (indexer != null) {
+                indexer.accept(store);
+            }
+            return store;
+        };
+        return new LazyLoad<>(loadAndReplay, loadExecutor, fileSize(file) <= LAZY_LOAD_THRESHOLD);
+    }
+    
+    // Journal each change under the store's write lock, so entries are in the order the changes happened
+    private static <T> EntityStore.Listener<T> journalListener(ChangeJournal<T> journal, Function<T, String> idOf) {
+        return new EntityStore.Listener<T>() {
+            @Override
+            public void changed(T old, T item) {
+                if (item == null) {
+                    journal.recordDelete(idOf.apply(old));
+                } else if (old == null) {
+                    journal.recordAdd(item);
+                } else {
+                    if (!idOf.apply(old).equals(idOf.apply(item))) {
+                        journal.recordDelete(idOf.apply(old));
+                    }
+                    journal.recordUpdate(item);
+                }
+            }
+
+            @Override
+            public void addedAll(List<T> items) {
+                journal.recordAddAll(items); // one write and flush for a whole import
+            }
+        };
+    }
+    
+    // Rewrite a whole file. The snapshot is taken inside the lock, so concurrent saves of one
+    // file are serialized and the last one written is never older than a finished change.
+    private static <T> void rewrite(EntityStore<T> store, Predicate<List<T>> saver) {
+        synchronized (store) {
+            saver.test(store.snapshot());
+        }
+    }
+    
+    private static long fileSize(String file) {
+        try {
+            return Files.size(Paths.get(file));
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+    
+    private void openJournals() {
+        compactionExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "csv-compaction");
+            t.setDaemon(true);
+            return t;
+        });
+        patientJournal = new ChangeJournal<>(PATIENTS_FILE + JOURNAL_SUFFIX,
+            CSVHandler::parsePatient, Patient::getPatientID, Patient::toCSV, () -> patients().snapshot(),
+            list -> CSVHandler.savePatients(PATIENTS_FILE, list), compactionExecutor, COMPACTION_THRESHOLD);
+        clinicianJournal = new ChangeJournal<>(CLINICIANS_FILE + JOURNAL_SUFFIX,
+            CSVHandler::parseClinician, Clinician::getClinicianID, Clinician::toCSV, () -> clinicians().snapshot(),
+            list -> CSVHandler.saveClinicians(CLINICIANS_FILE, list), compactionExecutor, COMPACTION_THRESHOLD);
+        appointmentJournal = new ChangeJournal<>(APPOINTMENTS_FILE + JOURNAL_SUFFIX,
+            CSVHandler::parseAppointment, Appointment::getAppointmentID, Appointment::toCSV, () -> appointments().snapshot(),
+            list -> CSVHandler.saveAppointments(APPOINTMENTS_FILE, list), compactionExecutor, COMPACTION_THRESHOLD);
+        prescriptionJournal = new ChangeJournal<>(PRESCRIPTIONS_FILE + JOURNAL_SUFFIX,
+            CSVHandler::parsePrescription, Prescription::getPrescriptionID, Prescription::toCSV, () -> prescriptions().snapshot(),
+            list -> CSVHandler.savePrescriptions(PRESCRIPTIONS_FILE, list), compactionExecutor, COMPACTION_THRESHOLD);
+    }
+    
+    private void openWriteBehind(long flushWindowMillis, int flushBatchSize) {
+        writeBehind = new WriteBehindFlusher(flushWindowMillis, flushBatchSize);
+        writeBehind.register(PATIENTS_FILE,
+            () -> CSVHandler.savePatients(PATIENTS_FILE, patients().snapshot()));
+        writeBehind.register(CLINICIANS_FILE,
+            () -> CSVHandler.saveClinicians(CLINICIANS_FILE, clinicians().snapshot()));
+        writeBehind.register(APPOINTMENTS_FILE,
+            () -> CSVHandler.saveAppointments(APPOINTMENTS_FILE, appointments().snapshot()));
+        writeBehind.register(PRESCRIPTIONS_FILE,
+            () -> CSVHandler.savePrescriptions(PRESCRIPTIONS_FILE, prescriptions().snapshot()));
+    }
+    
+    // Flush latency and queue depth of the write-behind saver, null in other modes
+    public WriteBehindFlusher.Stats getWriteBehindStats() {
+        return writeBehind != null ? writeBehind.getStats() : null;
+    }
+    
+    // Write binary snapshots of every loaded entity set whose CSV file changed since the last one
+    public void saveSnapshots() {
+        saveSnapshot(patients, patientSnapshot);
+        saveSnapshot(clinicians, clinicianSnapshot);
+        saveSnapshot(appointments, appointmentSnapshot);
+        saveSnapshot(prescriptions, prescriptionSnapshot);
+    }
+    
+    private <T> void saveSnapshot(LazyLoad<EntityStore<T>> data, SnapshotFile<T> snapshot) {
+        if (data.isStarted() && !snapshot.isFresh()) {
+            snapshot.save(data.get().snapshot());
+        }
+    }
+    
+    // Fold outstanding journal entries into the CSV files and snapshot them, call before the application exits
+    public void shutdown() {
+        referralEmails.shutdown();
+        synchronized (this) {
+            if (referralDelivery != null) {
+                referralDelivery.stop();
+            }
+        }
+        if (referralOutbox != null) {
+            referralOutbox.close();
+        }
+        // Only now: the email writers may still have needed a store loaded
+        loadExecutor.shutdown();
+        if (writeBehind != null) {
+            writeBehind.shutdown();
+        }
+        patientIds.close();
+        clinicianIds.close();
+        appointmentIds.close();
+        prescriptionIds.close();
+        Referral.shutdown();
+        if (mode != PersistenceMode.JOURNAL) {
+            saveSnapshots();
+            return;
+        }
+        compactionExecutor.shutdown();
+        try {
+            compactionExecutor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        patientJournal.compactNow();
+        clinicianJournal.compactNow();
+        appointmentJournal.compactNow();
+        prescriptionJournal.compactNow();
+        patientJournal.close();
+        clinicianJournal.close();
+        appointmentJournal.close();
+        prescriptionJournal.close();
+        saveSnapshots();
+    }
+    
+    private EntityStore<Patient> patients() {
+        return patients.get();
+    }
+    
+    private EntityStore<Clinician> clinicians() {
+        return clinicians.get();
+    }
+    
+    private EntityStore<Appointment> appointments() {
+        return appointments.get();
+    }
+    
+    private EntityStore<Prescription> prescriptions() {
+        return prescriptions.get();
+    }
+    
+    // Futures of the entity lists, completed once the CSV file has been loaded
+    public CompletableFuture<List<Patient>> getPatientsAsync() {
+        return patients.future().thenApply(EntityStore::snapshot);
+    }
+    
+    public CompletableFuture<List<Clinician>> getCliniciansAsync() {
+        return clinicians.future().thenApply(EntityStore::snapshot);
+    }
+    
+    public CompletableFuture<List<Appointment>> getAppointmentsAsync() {
+        return appointments.future().thenApply(EntityStore::snapshot);
+    }
+    
+    public CompletableFuture<List<Prescription>> getPrescriptionsAsync() {
+        return prescriptions.future().thenApply(EntityStore::snapshot);
     }
     
     // ========== PATIENT OPERATIONS ==========
     
     public List<Patient> getAllPatients() {
-        return new ArrayList<>(patients);
+        return patients().snapshot();
+    }
+    
+    public Patient findPatientById(String id) {
+        return patients().find(id);
     }
     
     public void addPatient(Patient patient) {
-        patients.add(patient);
-        CSVHandler.savePatients(PATIENTS_FILE, patients);
+        patients().add(patient);
+        patientIds.observe(patient.getPatientID());
+        savePatients();
     }
     
-    public void updatePatient(int index, Patient patient) {
-        if (index >= 0 && index < patients.size()) {
-            patients.set(index, patient);
-            CSVHandler.savePatients(PATIENTS_FILE, patients);
+    // Replace the patient with this ID, false if there is none
+    public boolean updatePatientById(String id, Patient patient) {
+        if (patients().update(id, patient) == null) {
+            return false;
         }
+        patientIds.observe(patient.getPatientID());
+        savePatients();
+        return true;
     }
     
-    public void deletePatient(int index) {
-        if (index >= 0 && index < patients.size()) {
-            patients.remove(index);
-            CSVHandler.savePatients(PATIENTS_FILE, patients);
+    // Remove the patient with this ID, false if there is none
+    public boolean deletePatientById(String id) {
+        if (patients().remove(id) == null) {
+            return false;
         }
+        savePatients();
+        return true;
     }
     
-    public String generatePatientID() {
-        int maxNum = 0;
-        for (Patient p : patients) {
-            String id = p.getPatientID().substring(1);
-            int num = Integer.parseInt(id);
-            if (num > maxNum) maxNum = num;
+    // Save the whole patient file, now or from the write-behind thread; journaled changes are recorded by the store
+    private void savePatients() {
+        if (writeBehind != null) {
+            writeBehind.markDirty(PATIENTS_FILE);
+        } else if (patientJournal == null) {
+            rewrite(patients(), list -> CSVHandler.savePatients(PATIENTS_FILE, list));
         }
-        return String.format("P%03d", maxNum + 1);
+    }
+    
+    /**
+     * Add every valid row of a CSV file in the patients.csv layout, with one save for the lot
+     * Rows with a blank ID get a new one; invalid rows and taken or repeated IDs are rejected.
+     */
+    public BulkImporter.Result<Patient> importPatients(String path) {
+        BulkImporter.Result<Patient> result = BulkImporter.patients(patientIds).importInto(path, patients());
+        if (!result.imported.isEmpty()) {
+            savePatients();
+        }
+        return result;
+    }
+    
+    public String generatePatientID() {
+        patients(); // the sequence has seen every stored ID once the list is loaded
+        return patientIds.next();
     }
     
     // ========== CLINICIAN OPERATIONS ==========
     
     public List<Clinician> getAllClinicians() {
-        return new ArrayList<>(clinicians);
+        return clinicians().snapshot();
+    }
+    
+    public Clinician findClinicianById(String id) {
+        return clinicians().find(id);
     }
     
     public void addClinician(Clinician clinician) {
-        clinicians.add(clinician);
-        CSVHandler.saveClinicians(CLINICIANS_FILE, clinicians);
+        clinicians().add(clinician);
+        clinicianIds.observe(clinician.getClinicianID());
+        saveClinicians();
     }
     
-    public void updateClinician(int index, Clinician clinician) {
-        if (index >= 0 && index < clinicians.size()) {
-            clinicians.set(index, clinician);
-            CSVHandler.saveClinicians(CLINICIANS_FILE, clinicians);
+    // Replace the clinician with this ID, false if there is none
+    public boolean updateClinicianById(String id, Clinician clinician) {
+        if (clinicians().update(id, clinician) == null) {
+            return false;
         }
+        clinicianIds.observe(clinician.getClinicianID());
+        saveClinicians();
+        return true;
     }
     
-    public void deleteClinician(int index) {
-        if (index >= 0 && index < clinicians.size()) {
-            clinicians.remove(index);
-            CSVHandler.saveClinicians(CLINICIANS_FILE, clinicians);
+    // Remove the clinician with this ID, false if there is none
+    public boolean deleteClinicianById(String id) {
+        if (clinicians().remove(id) == null) {
+            return false;
         }
+        saveClinicians();
+        return true;
     }
     
-    public String generateClinicianID() {
-        int maxNum = 0;
-        for (Clinician c : clinicians) {
-            String id = c.getClinicianID().substring(1);
-            int num = Integer.parseInt(id);
-            if (num > maxNum) maxNum = num;
+    // Save the whole clinician file, now or from the write-behind thread; journaled changes are recorded by the store
+    private void saveClinicians() {
+        if (writeBehind != null) {
+            writeBehind.markDirty(CLINICIANS_FILE);
+        } else if (clinicianJournal == null) {
+            rewrite(clinicians(), list -> CSVHandler.saveClinicians(CLINICIANS_FILE, list));
         }
-        return String.format("C%03d", maxNum + 1);
+    }
+    
+    public String generateClinicianID() {
+        clinicians(); // the sequence has seen every stored ID once the list is loaded
+        return clinicianIds.next();
     }
     
     // ========== APPOINTMENT OPERATIONS ==========
     
     public List<Appointment> getAllAppointments() {
-        return new ArrayList<>(appointments);
+        return appointments().snapshot();
+    }
+    
+    public Appointment findAppointmentById(String id) {
+        return appointments().find(id);
     }
     
     public void addAppointment(Appointment appointment) {
-        appointments.add(appointment);
-        CSVHandler.saveAppointments(APPOINTMENTS_FILE, appointments);
+        appointments().add(appointment);
+        appointmentIds.observe(appointment.getAppointmentID());
+        saveAppointments();
+    }
+    
+    /**
+     * Add the appointment unless it overlaps another booking of its clinician or patient
+     * Returns the overlapping appointments, empty if it was booked. addAppointment() books regardless.
+     */
+    public List<Appointment> bookAppointment(Appointment appointment) {
+        List<Appointment> conflicts = new ArrayList<>();
+        boolean added = appointments().addIf(appointment, a -> {
+            conflicts.addAll(appointmentSchedule.conflicts(a));
+            return conflicts.isEmpty();
+        });
+        if (added) {
+            appointmentIds.observe(appointment.getAppointmentID());
+            saveAppointments();
+        }
+        return conflicts;
     }
     
-    public void updateAppointment(int index, Appointment appointment) {
-        if (index >= 0 && index < appointments.size()) {
-            appointments.set(index, appointment);
-            CSVHandler.saveAppointments(APPOINTMENTS_FILE, appointments);
+    /**
+     * Earliest free slot of each clinician with this specialization on each day from..to, both inclusive
+     * Ordered by date and time, at most limit slots; see AppointmentSchedule for opening hours.
+     */
+    public List<AppointmentSchedule.Slot> findFreeSlots(String specialization, LocalDate from, LocalDate to,
+                                                        int slotMinutes, int limit) {
+        clinicians();
+        List<String> clinicianIDs = new ArrayList<>();
+        for (Clinician c : cliniciansBySpecialization.get(specializationKey(specialization))) {
+            clinicianIDs.add(c.getClinicianID());
         }
+        return appointments().read(rows -> appointmentSchedule.freeSlots(clinicianIDs, from, to, slotMinutes, limit));
     }
     
-    public void deleteAppointment(int index) {
-        if (index >= 0 && index < appointments.size()) {
-            appointments.remove(index);
-            CSVHandler.saveAppointments(APPOINTMENTS_FILE, appointments);
+    private static String specializationKey(Clinician clinician) {
+        return specializationKey(clinician.getSpecialization());
+    }
+    
+    private static String specializationKey(String specialization) {
+        return specialization == null ? null : specialization.trim().toLowerCase();
+    }
+    
+    // Booked appointments overlapping this one for its clinician or patient, other than itself
+    public List<Appointment> findAppointmentConflicts(Appointment appointment) {
+        return appointments().read(rows -> appointmentSchedule.conflicts(appointment));
+    }
+    
+    /**
+     * Replace the appointment with this ID unless the new one overlaps another booking of its clinician or patient
+     * The check and the replace happen under one write lock, so nothing can be booked in between.
+     * Returns the overlapping appointments, empty if it was replaced, null if there is no such appointment.
+     * updateAppointmentById() replaces regardless.
+     */
+    public List<Appointment> rescheduleAppointment(String id, Appointment appointment) {
+        List<Appointment> conflicts = new ArrayList<>();
+        Appointment old = appointments().updateIf(id, appointment, a -> {
+            conflicts.addAll(appointmentSchedule.conflicts(a));
+            return conflicts.isEmpty();
+        });
+        if (old == null) {
+            return conflicts.isEmpty() ? null : conflicts;
         }
+        appointmentIds.observe(appointment.getAppointmentID());
+        saveAppointments();
+        return conflicts;
+    }
+    
+    // Replace the appointment with this ID, false if there is none
+    public boolean updateAppointmentById(String id, Appointment appointment) {
+        if (appointments().update(id, appointment) == null) {
+            return false;
+        }
+        appointmentIds.observe(appointment.getAppointmentID());
+        saveAppointments();
+        return true;
+    }
+    
+    // Remove the appointment with this ID, false if there is none
+    public boolean deleteAppointmentById(String id) {
+        if (appointments().remove(id) == null) {
+            return false;
+        }
+        saveAppointments();
+        return true;
+    }
+    
+    // Save the whole appointment file, now or from the write-behind thread; journaled changes are recorded by the store
+    private void saveAppointments() {
+        if (writeBehind != null) {
+            writeBehind.markDirty(APPOINTMENTS_FILE);
+        } else if (appointmentJournal == null) {
+            rewrite(appointments(), list -> CSVHandler.saveAppointments(APPOINTMENTS_FILE, list));
+        }
+    }
+    
+    /**
+     * Add every valid row of a CSV file in the appointments.csv layout, with one save for the lot
+     * Appointments must refer to stored patients and clinicians; rows with a blank ID get a new one.
+     */
+    public BulkImporter.Result<Appointment> importAppointments(String path) {
+        EntityStore<Patient> patientStore = patients();
+        EntityStore<Clinician> clinicianStore = clinicians();
+        BulkImporter.Result<Appointment> result = BulkImporter.appointments(appointmentIds,
+                patientStore::contains, clinicianStore::contains).importInto(path, appointments());
+        if (!result.imported.isEmpty()) {
+            saveAppointments();
+        }
+        return result;
     }
     
     public String generateAppointmentID() {
-        int maxNum = 0;
-        for (Appointment a : appointments) {
-            String id = a.getAppointmentID().substring(1);
-            int num = Integer.parseInt(id);
-            if (num > maxNum) maxNum = num;
+        appointments(); // the sequence has seen every stored ID once the list is loaded
+        return appointmentIds.next();
+    }
+    
+    public List<Appointment> getAppointmentsForClinician(String clinicianID) {
+        appointments();
+        return appointmentsByClinician.get(clinicianID);
+    }
+    
+    public List<Appointment> getAppointmentsForPatient(String patientID) {
+        appointments();
+        return appointmentsByPatient.get(patientID);
+    }
+    
+    // Appointments dated between from and to, both inclusive, in date order
+    public List<Appointment> getAppointmentsBetween(LocalDate from, LocalDate to) {
+        appointments();
+        return appointmentsByDate.range(from.toString(), to.toString());
+    }
+    
+    // A clinician's appointments dated between from and to, both inclusive
+    public List<Appointment> getAppointmentsForClinicianBetween(String clinicianID, LocalDate from, LocalDate to) {
+        String first = from.toString();
+        String last = to.toString();
+        List<Appointment> result = new ArrayList<>();
+        for (Appointment a : getAppointmentsForClinician(clinicianID)) {
+            if (a.getDate().compareTo(first) >= 0 && a.getDate().compareTo(last) <= 0) {
+                result.add(a);
+            }
+        }
+        return result;
+    }
+    
+    // Number of appointments dated between from and to, both inclusive
+    public int countAppointmentsBetween(LocalDate from, LocalDate to) {
+        return appointments().read(rows -> appointmentColumns(rows).countBetween(from, to));
+    }
+    
+    // Number of appointments per clinician ID
+    public Map<String, Integer> countAppointmentsByClinician() {
+        return appointments().read(rows -> appointmentColumns(rows).countByClinician());
+    }
+    
+    // Called with the appointment store's read lock held, so no change can slip in while it is built
+    private synchronized AppointmentColumnStore appointmentColumns(Collection<Appointment> rows) {
+        if (appointmentColumns == null) {
+            appointmentColumns = AppointmentColumnStore.of(rows);
+        }
+        return appointmentColumns;
+    }
+    
+    // Store listener: the schedule changes under the store write lock and is read under its read lock
+    private void syncAppointmentSchedule(Appointment old, Appointment item) {
+        if (old != null) {
+            appointmentSchedule.remove(old);
+        }
+        if (item != null) {
+            appointmentSchedule.add(item);
+        }
+    }
+
+    // Store listener, runs under the appointment store's write lock
+    private void syncAppointmentColumns(Appointment old, Appointment item) {
+        AppointmentColumnStore columns = appointmentColumns;
+        if (columns == null) {
+            return;
+        }
+        if (old == null) {
+            columns.add(item);
+        } else if (item == null) {
+            columns.removeById(old.getAppointmentID());
+        } else {
+            columns.setById(old.getAppointmentID(), item);
         }
-        return String.format("A%03d", maxNum + 1);
     }
     
     // ========== PRESCRIPTION OPERATIONS ==========
     
     public List<Prescription> getAllPrescriptions() {
-        return new ArrayList<>(prescriptions);
+        return prescriptions().snapshot();
+    }
+    
+    public Prescription findPrescriptionById(String id) {
+        return prescriptions().find(id);
     }
     
     public void addPrescription(Prescription prescription) {
-        prescriptions.add(prescription);
-        CSVHandler.savePrescriptions(PRESCRIPTIONS_FILE, prescriptions);
+        prescriptions().add(prescription);
+        prescriptionIds.observe(prescription.getPrescriptionID());
+        savePrescriptions();
+    }
+    
+    // Replace the prescription with this ID, false if there is none
+    public boolean updatePrescriptionById(String id, Prescription prescription) {
+        if (prescriptions().update(id, prescription) == null) {
+            return false;
+        }
+        prescriptionIds.observe(prescription.getPrescriptionID());
+        savePrescriptions();
+        return true;
     }
     
-    public void updatePrescription(int index, Prescription prescription) {
-        if (index >= 0 && index < prescriptions.size()) {
-            prescriptions.set(index, prescription);
-            CSVHandler.savePrescriptions(PRESCRIPTIONS_FILE, prescriptions);
+    // Remove the prescription with this ID, false if there is none
+    public boolean deletePrescriptionById(String id) {
+        if (prescriptions().remove(id) == null) {
+            return false;
         }
+        savePrescriptions();
+        return true;
     }
     
-    public void deletePrescription(int index) {
-        if (index >= 0 && index < prescriptions.size()) {
-            prescriptions.remove(index);
-            CSVHandler.savePrescriptions(PRESCRIPTIONS_FILE, prescriptions);
+    // Save the whole prescription file, now or from the write-behind thread; journaled changes are recorded by the store
+    private void savePrescriptions() {
+        if (writeBehind != null) {
+            writeBehind.markDirty(PRESCRIPTIONS_FILE);
+        } else if (prescriptionJournal == null) {
+            rewrite(prescriptions(), list -> CSVHandler.savePrescriptions(PRESCRIPTIONS_FILE, list));
         }
     }
     
+    public List<Prescription> getPrescriptionsForPatient(String patientID) {
+        prescriptions();
+        return prescriptionsByPatient.get(patientID);
+    }
+    
+    public List<Prescription> getPrescriptionsForClinician(String clinicianID) {
+        prescriptions();
+        return prescriptionsByClinician.get(clinicianID);
+    }
+    
     public String generatePrescriptionID() {
-        int maxNum = 0;
-        for (Prescription p : prescriptions) {
-            String id = p.getPrescriptionID().substring(2);
-            int num = Integer.parseInt(id);
-            if (num > maxNum) maxNum = num;
+        prescriptions(); // the sequence has seen every stored ID once the list is loaded
+        return prescriptionIds.next();
+    }
+    
+    // ========== EXPORTS ==========
+    // Extracts stream from a cursor: the live rows when the entity set is loaded, otherwise the CSV file
+    // itself, so a large file that was never loaded is exported without loading it. Date bounds are
+    // inclusive and may be null, as may the filter. Each returns null if the extract could not be written.
+    
+    public CSVExporter.Stats exportPatients(String path, boolean gzip, Predicate<Patient> filter) {
+        return export(path, gzip, patients, PATIENTS_FILE, () -> CSVHandler.streamPatients(PATIENTS_FILE, false),
+                      CSVHandler.PATIENTS_HEADER, Patient::toCSV, filter);
+    }
+    
+    public CSVExporter.Stats exportAppointments(String path, boolean gzip, LocalDate from, LocalDate to,
+                                                Predicate<Appointment> filter) {
+        return export(path, gzip, appointments, APPOINTMENTS_FILE,
+                      () -> CSVHandler.streamAppointments(APPOINTMENTS_FILE, false), CSVHandler.APPOINTMENTS_HEADER,
+                      Appointment::toCSV, withDates(Appointment::getDate, from, to, filter));
+    }
+    
+    public CSVExporter.Stats exportPrescriptions(String path, boolean gzip, LocalDate from, LocalDate to,
+                                                 Predicate<Prescription> filter) {
+        return export(path, gzip, prescriptions, PRESCRIPTIONS_FILE,
+                      () -> CSVHandler.streamPrescriptions(PRESCRIPTIONS_FILE, false), CSVHandler.PRESCRIPTIONS_HEADER,
+                      Prescription::toCSV, withDates(Prescription::getDate, from, to, filter));
+    }
+    
+    private <T> CSVExporter.Stats export(String path, boolean gzip, LazyLoad<EntityStore<T>> data, String file,
+                                         Supplier<Stream<T>> fileCursor, String header,
+                                         Function<T, String> toCSV, Predicate<T> filter) {
+        // Journal entries not yet compacted are only applied by loading
+        boolean fromFile = !data.isStarted() && fileSize(file + JOURNAL_SUFFIX) == 0;
+        try (Stream<T> rows = fromFile ? fileCursor.get() : data.get().snapshot().stream()) {
+            return CSVExporter.export(path, header, rows.iterator(), toCSV, filter, gzip);
+        } catch (IOException e) {
+            System.err.println("Error exporting " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+    
+    // Narrow a filter to rows whose ISO date lies in [from, to]
+    private static <T> Predicate<T> withDates(Function<T, String> dateOf, LocalDate from, LocalDate to,
+                                              Predicate<T> filter) {
+        if (from == null && to == null) {
+            return filter;
         }
-        return String.format("PR%03d", maxNum + 1);
+        String first = from != null ? from.toString() : null;
+        String last = to != null ? to.toString() : null;
+        return row -> {
+            String date = dateOf.apply(row);
+            return (first == null || date.compareTo(first) >= 0) && (last == null || date.compareTo(last) <= 0)
+                    && (filter == null || filter.test(row));
+        };
     }
     
     // ========== REFERRAL OPERATIONS (Using Singleton) ==========
     
-    public void createReferral(String patientID, String patientName,
+    // Create a referral and queue its email file, returns the new referral once it is saved
+    public Referral.ReferralData createReferral(String patientID, String patientName,
         String fromClinicianID, String toClinicianID, 
         String reason) {
-        Referral referralManager = Referral.getInstance();
-        referralManager.addReferral(patientID, patientName, fromClinicianID, 
-        toClinicianID, reason);
-        
-        // Generate email file for the latest referral
-        List<Referral.ReferralData> referrals = referralManager.getAllReferrals();
-        if (!referrals.isEmpty()) {
-            referralManager.generateEmailFile(referrals.get(referrals.size() - 1));
+        Referral.ReferralData referral = Referral.getInstance().addReferral(patientID, patientName,
+            fromClinicianID, toClinicianID, reason);
+        ClinicianLoad load = clinicianLoad;
+        if (load != null) {
+            load.referralAdded(referral);
         }
+        sendReferralEmail(referral);
+        return referral;
+    }
+    
+    /**
+     * Create a referral for the clinician of this specialization with the least outstanding work
+     * Returns the new referral, or null if no clinician has the specialization.
+     */
+    public Referral.ReferralData routeReferral(String patientID, String patientName,
+        String fromClinicianID, String specialization, String reason) {
+        ClinicianLoad load = clinicianLoad();
+        String toClinicianID = load.route(specializationKey(specialization), patientID);
+        if (toClinicianID == null) {
+            return null;
+        }
+        // Saved outside the load's lock, which the appointment store's listener needs
+        Referral.ReferralData referral = Referral.getInstance().addReferral(patientID, patientName,
+            fromClinicianID, toClinicianID, reason);
+        load.referralRouted(referral);
+        sendReferralEmail(referral);
+        return referral;
+    }
+    
+    // Open referrals plus Scheduled appointments of a clinician
+    public int getClinicianLoad(String clinicianID) {
+        return clinicianLoad().loadOf(clinicianID);
+    }
+    
+    private ClinicianLoad clinicianLoad() {
+        ClinicianLoad load = clinicianLoad;
+        if (load != null) {
+            return load;
+        }
+        synchronized (clinicianLoadLock) {
+            if (clinicianLoad == null) {
+                // Both stores are read-locked while it is built and published, so no change is missed
+                clinicians().read(cs -> appointments().read(as -> {
+                    clinicianLoad = ClinicianLoad.of(cs, as, HealthcareController::specializationKey);
+                    return null;
+                }));
+                // A referral added meanwhile is either in this list or counted by createReferral; never twice
+                for (Referral.ReferralData referral : Referral.getInstance().getAllReferrals()) {
+                    clinicianLoad.referralAdded(referral);
+                }
+            }
+            return clinicianLoad;
+        }
+    }
+    
+    // Store listeners, run under the clinician or appointment store's write lock
+    private void syncClinicianLoad(Clinician old, Clinician item) {
+        ClinicianLoad load = clinicianLoad;
+        if (load != null) {
+            load.clinicianChanged(old, item);
+        }
+    }
+    
+    private void syncClinicianLoad(Appointment old, Appointment item) {
+        ClinicianLoad load = clinicianLoad;
+        if (load != null) {
+            load.appointmentChanged(old, item);
+        }
+    }
+    
+    // Queue the email for a referral, waiting only if the queue is full; completes once it is in the outbox
+    public CompletableFuture<Referral.ReferralData> sendReferralEmail(Referral.ReferralData referral) {
+        return referralEmails.submit(referral);
+    }
+    
+    // Called on the email writer threads; the recipient is the receiving clinician's address, if known
+    private void appendReferralEmail(Referral.ReferralData referral, ByteBuffer buffer) throws IOException {
+        if (referralOutbox == null) {
+            throw new IOException("Outbox is not available");
+        }
+        Clinician to = clinicians().find(referral.toClinicianID);
+        String recipient = to != null && to.getEmail() != null ? to.getEmail().trim() : "";
+        referralOutbox.append(referral.referralID, REFERRAL_SENDER, recipient, "Referral " + referral.referralID,
+            (channel, buf) -> Referral.getInstance().writeEmail(referral, channel, buf), buffer);
+    }
+    
+    // Start sending the outbox to the SMTP server in the healthcare.smtp property, if it is set
+    public void startEmailDelivery() {
+        String server = System.getProperty(SMTP_PROPERTY);
+        if (server == null || server.trim().isEmpty()) {
+            return;
+        }
+        try {
+            startEmailDelivery(server.trim());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error starting email delivery: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Start sending the outbox to an SMTP server given as host:port
+     * @throws IllegalArgumentException if server is not host:port
+     */
+    public void startEmailDelivery(String server) {
+        int colon = server.lastIndexOf(':');
+        int port;
+        try {
+            port = Integer.parseInt(server.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            port = -1;
+        }
+        if (colon <= 0 || port < 1 || port > 65535) {
+            throw new IllegalArgumentException("SMTP server must be host:port, not " + server);
+        }
+        startEmailDelivery(server.substring(0, colon), port);
+    }
+    
+    // Start sending the outbox to an SMTP server, including mail left over from earlier runs
+    public synchronized void startEmailDelivery(String host, int port) {
+        if (referralDelivery == null && referralOutbox != null) {
+            referralDelivery = new OutboxDelivery(referralOutbox, host, port).start();
+        }
+    }
+    
+    // Delivery state of a referral's email, null until it reaches the outbox
+    public Outbox.Message getReferralEmailState(String referralID) {
+        return referralOutbox != null ? referralOutbox.find(referralID) : null;
+    }
+    
+    // Messages, delivery counts and size of the outbox, null if it could not be opened
+    public Outbox.Stats getOutboxStats() {
+        return referralOutbox != null ? referralOutbox.getStats() : null;
+    }
+    
+    // Text of a referral's email file
+    public String getReferralEmail(Referral.ReferralData referral) {
+        return Referral.getInstance().generateEmailContent(referral);
+    }
+    
+    // Throughput, queue depth and queue wait of the referral email writers
+    public EmailDispatcher.Stats getReferralEmailStats() {
+        return referralEmails.getStats();
     }
     
+    // Read-only view of the referrals made so far
     public List<Referral.ReferralData> getAllReferrals() {
     return Referral.getInstance().getAllReferrals();
     }
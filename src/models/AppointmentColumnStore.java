@@ -0,0 +1,425 @@
+package models;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar in-memory store for appointments
+ * Keeps each column in a parallel primitive array: IDs as int codes into a per-column
+ * code table, date as epoch-day, time as minute-of-day and status as a byte code.
+ * The columns take 19 bytes per row and date-range scans and per-clinician counts
+ * run over tight int arrays instead of comparing Strings. Every distinct ID also
+ * costs its table entry (the String, a boxed code and a map node, roughly 100
+ * bytes), so an appointment's own ID outweighs its columns; that code is freed
+ * when the appointment is removed, while patient and clinician codes stay for as
+ * long as the store does.
+ * get(row) returns an Appointment view that reads and writes through to the row.
+ * Rows are found by ID through a code-to-row array, and a delete moves the last
+ * row into the gap, so neither costs more with more appointments. Row order is
+ * therefore not the order appointments were added in.
+ */
+public class AppointmentColumnStore {
+    // Returned by the parsers for a date or time that is not yyyy-MM-dd / HH:mm
+    private static final int UNPARSED = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Codes appointmentIDs = new Codes();
+    private final Codes patientIDs = new Codes();
+    private final Codes clinicianIDs = new Codes();
+    private final Codes statuses = new Codes();
+    // Free text that does not parse is stored as -(code + 1) into rawDates / rawTimes
+    private final Codes rawDates = new Codes();
+    private final Codes rawTimes = new Codes();
+
+    private int[] appointmentCol = new int[INITIAL_CAPACITY];
+    private int[] patientCol = new int[INITIAL_CAPACITY];
+    private int[] clinicianCol = new int[INITIAL_CAPACITY];
+    private int[] dateCol = new int[INITIAL_CAPACITY];   // epoch-day
+    private short[] timeCol = new short[INITIAL_CAPACITY]; // minute-of-day
+    private byte[] statusCol = new byte[INITIAL_CAPACITY];
+    private int[] rowByID = new int[0]; // appointment ID code to row, -1 once deleted
+    private int size;
+
+    public static AppointmentColumnStore of(Collection<Appointment> appointments) {
+        AppointmentColumnStore store = new AppointmentColumnStore();
+        store.ensureCapacity(appointments.size());
+        for (Appointment a : appointments) {
+            store.add(a);
+        }
+        return store;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Append an appointment, returns its row
+    public int add(Appointment a) {
+        ensureCapacity(size + 1);
+        write(size, a);
+        return size++;
+    }
+
+    public void set(int row, Appointment a) {
+        checkRow(row);
+        write(row, a);
+    }
+
+    // Remove a row by moving the last row into it
+    public void remove(int row) {
+        checkRow(row);
+        rowByID[appointmentCol[row]] = -1;
+        appointmentIDs.release(appointmentCol[row]);
+        int last = size - 1;
+        if (row != last) {
+            appointmentCol[row] = appointmentCol[last];
+            patientCol[row] = patientCol[last];
+            clinicianCol[row] = clinicianCol[last];
+            dateCol[row] = dateCol[last];
+            timeCol[row] = timeCol[last];
+            statusCol[row] = statusCol[last];
+            rowByID[appointmentCol[row]] = row;
+        }
+        size--;
+    }
+
+    // Row holding this appointment ID, -1 if none
+    public int rowOf(String appointmentID) {
+        int code = appointmentIDs.find(appointmentID);
+        return code < 0 || code >= rowByID.length ? -1 : rowByID[code];
+    }
+
+    public boolean setById(String appointmentID, Appointment a) {
+        int row = rowOf(appointmentID);
+        if (row < 0) {
+            return false;
+        }
+        write(row, a);
+        return true;
+    }
+
+    public boolean removeById(String appointmentID) {
+        int row = rowOf(appointmentID);
+        if (row < 0) {
+            return false;
+        }
+        remove(row);
+        return true;
+    }
+
+    // View of one row; the view is only valid until a row is removed
+    public Appointment get(int row) {
+        checkRow(row);
+        return new RowView(row);
+    }
+
+    // All rows as a read-only list of views
+    public List<Appointment> asList() {
+        return new AbstractList<Appointment>() {
+            @Override
+            public Appointment get(int row) {
+                return AppointmentColumnStore.this.get(row);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    // ========== QUERIES ==========
+
+    // Rows whose date lies in [from, to], both inclusive
+    public int[] rowsBetween(LocalDate from, LocalDate to) {
+        int lo = Math.max(0, (int) from.toEpochDay()); // negative values are raw text codes
+        int hi = (int) to.toEpochDay();
+        int[] rows = new int[16];
+        int count = 0;
+        for (int r = 0; r < size; r++) {
+            int day = dateCol[r];
+            if (day >= lo && day <= hi) {
+                if (count == rows.length) {
+                    rows = Arrays.copyOf(rows, count * 2);
+                }
+                rows[count++] = r;
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    public int countBetween(LocalDate from, LocalDate to) {
+        int lo = Math.max(0, (int) from.toEpochDay());
+        int hi = (int) to.toEpochDay();
+        int count = 0;
+        for (int r = 0; r < size; r++) {
+            int day = dateCol[r];
+            if (day >= lo && day <= hi) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Number of appointments per clinician ID, in first-seen order
+    public Map<String, Integer> countByClinician() {
+        int[] counts = new int[clinicianIDs.size()];
+        for (int r = 0; r < size; r++) {
+            counts[clinicianCol[r]]++;
+        }
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (int code = 0; code < counts.length; code++) {
+            if (counts[code] > 0) {
+                result.put(clinicianIDs.value(code), counts[code]);
+            }
+        }
+        return result;
+    }
+
+    public int countForClinician(String clinicianID) {
+        int code = clinicianIDs.find(clinicianID);
+        if (code < 0) {
+            return 0;
+        }
+        int count = 0;
+        for (int r = 0; r < size; r++) {
+            if (clinicianCol[r] == code) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // ========== ENCODING ==========
+
+    private void write(int row, Appointment a) {
+        int id = appointmentIDs.code(a.getAppointmentID());
+        if (row < size && appointmentCol[row] != id) {
+            rowByID[appointmentCol[row]] = -1; // the row changes ID
+            appointmentIDs.release(appointmentCol[row]);
+        }
+        if (id >= rowByID.length) {
+            int length = rowByID.length;
+            rowByID = Arrays.copyOf(rowByID, Math.max(INITIAL_CAPACITY, Math.max(id + 1, length * 2)));
+            Arrays.fill(rowByID, length, rowByID.length, -1);
+        }
+        rowByID[id] = row;
+        appointmentCol[row] = id;
+        patientCol[row] = patientIDs.code(a.getPatientID());
+        clinicianCol[row] = clinicianIDs.code(a.getClinicianID());
+        int day = parseDate(a.getDate());
+        dateCol[row] = day != UNPARSED ? day : -(rawDates.code(a.getDate()) + 1);
+        int minute = parseTime(a.getTime());
+        if (minute == UNPARSED) {
+            minute = -(rawTimes.code(a.getTime()) + 1);
+            if (minute < Short.MIN_VALUE) {
+                throw new IllegalStateException("Too many distinct unparsed appointment times");
+            }
+        }
+        timeCol[row] = (short) minute;
+        int status = statuses.code(a.getStatus());
+        if (status > Byte.MAX_VALUE) {
+            throw new IllegalStateException("Too many distinct appointment statuses");
+        }
+        statusCol[row] = (byte) status;
+    }
+
+    private String dateText(int row) {
+        int day = dateCol[row];
+        return day < 0 ? rawDates.value(-day - 1) : LocalDate.ofEpochDay(day).toString();
+    }
+
+    private String timeText(int row) {
+        int minute = timeCol[row];
+        if (minute < 0) {
+            return rawTimes.value(-minute - 1);
+        }
+        int hour = minute / 60;
+        int min = minute % 60;
+        return (hour < 10 ? "0" : "") + hour + ":" + (min < 10 ? "0" : "") + min;
+    }
+
+    // "2025-01-10" to epoch-day, UNPARSED for anything else
+    static int parseDate(String text) {
+        if (text == null || text.length() != 10 || text.charAt(4) != '-' || text.charAt(7) != '-') {
+            return UNPARSED;
+        }
+        int year = digits(text, 0, 4);
+        int month = digits(text, 5, 7);
+        int day = digits(text, 8, 10);
+        if (year < 0 || month < 0 || day < 0) {
+            return UNPARSED;
+        }
+        try {
+            long epochDay = LocalDate.of(year, month, day).toEpochDay();
+            return epochDay < 0 ? UNPARSED : (int) epochDay;
+        } catch (DateTimeException e) {
+            return UNPARSED;
+        }
+    }
+
+    // "10:00" to minute-of-day, UNPARSED for anything else
+    static int parseTime(String text) {
+        if (text == null || text.length() != 5 || text.charAt(2) != ':') {
+            return UNPARSED;
+        }
+        int hour = digits(text, 0, 2);
+        int minute = digits(text, 3, 5);
+        if (hour < 0 || hour > 23 || minute < 0 || minute > 59) {
+            return UNPARSED;
+        }
+        return hour * 60 + minute;
+    }
+
+    private static int digits(String text, int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private void ensureCapacity(int needed) {
+        if (needed <= appointmentCol.length) {
+            return;
+        }
+        int capacity = Math.max(needed, appointmentCol.length * 2);
+        appointmentCol = Arrays.copyOf(appointmentCol, capacity);
+        patientCol = Arrays.copyOf(patientCol, capacity);
+        clinicianCol = Arrays.copyOf(clinicianCol, capacity);
+        dateCol = Arrays.copyOf(dateCol, capacity);
+        timeCol = Arrays.copyOf(timeCol, capacity);
+        statusCol = Arrays.copyOf(statusCol, capacity);
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + ", size " + size);
+        }
+    }
+
+    /**
+     * Two-way String to int code table for one column
+     * A released code is handed out again for the next new value.
+     */
+    private static class Codes {
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+        private int[] free = new int[0];
+        private int freeCount;
+
+        int code(String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                if (freeCount > 0) {
+                    code = free[--freeCount];
+                    values.set(code, value);
+                } else {
+                    code = values.size();
+                    values.add(value);
+                }
+                codes.put(value, code);
+            }
+            return code;
+        }
+
+        void release(int code) {
+            codes.remove(values.get(code));
+            values.set(code, null);
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, Math.max(INITIAL_CAPACITY, freeCount * 2));
+            }
+            free[freeCount++] = code;
+        }
+
+        int find(String value) {
+            Integer code = codes.get(value);
+            return code == null ? -1 : code;
+        }
+
+        String value(int code) {
+            return values.get(code);
+        }
+
+        int size() {
+            return values.size();
+        }
+    }
+
+    /**
+     * Appointment backed by one row of the store
+     */
+    private class RowView extends Appointment {
+        private final int row;
+
+        RowView(int row) {
+            super(null, null, null, null, null, null);
+            this.row = row;
+        }
+
+        @Override
+        public String getAppointmentID() { return appointmentIDs.value(appointmentCol[row]); }
+        @Override
+        public void setAppointmentID(String appointmentID) { set(row, copy(appointmentID, null, null, null, null, null)); }
+
+        @Override
+        public String getPatientID() { return patientIDs.value(patientCol[row]); }
+        @Override
+        public void setPatientID(String patientID) { set(row, copy(null, patientID, null, null, null, null)); }
+
+        @Override
+        public String getClinicianID() { return clinicianIDs.value(clinicianCol[row]); }
+        @Override
+        public void setClinicianID(String clinicianID) { set(row, copy(null, null, clinicianID, null, null, null)); }
+
+        @Override
+        public String getDate() { return dateText(row); }
+        @Override
+        public void setDate(String date) { set(row, copy(null, null, null, date, null, null)); }
+
+        @Override
+        public String getTime() { return timeText(row); }
+        @Override
+        public void setTime(String time) { set(row, copy(null, null, null, null, time, null)); }
+
+        @Override
+        public String getStatus() { return statuses.value(statusCol[row]); }
+        @Override
+        public void setStatus(String status) { set(row, copy(null, null, null, null, null, status)); }
+
+        // Detached copy of this row with the non-null arguments replaced
+        private Appointment copy(String id, String patient, String clinician,
+                                 String date, String time, String status) {
+            return new Appointment(
+                id != null ? id : getAppointmentID(),
+                patient != null ? patient : getPatientID(),
+                clinician != null ? clinician : getClinicianID(),
+                date != null ? date : getDate(),
+                time != null ? time : getTime(),
+                status != null ? status : getStatus());
+        }
+
+        @Override
+        public String toCSV() {
+            return getAppointmentID() + "," + getPatientID() + "," + getClinicianID() + "," +
+                   getDate() + "," + getTime() + "," + getStatus();
+        }
+
+        @Override
+        public String toString() {
+            return copy(null, null, null, null, null, null).toString();
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package models;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Booked time of every clinician and patient, for double-booking checks
+ * Each clinician and each patient has a timeline: their appointments sorted by
+ * start minute (epoch-day * 1440 + minute-of-day) in a primitive array, which
+ * is a per-day interval index laid end to end. Every appointment lasts
+ * SLOT_MINUTES, so the ones overlapping a new booking are found by one binary
+ * search plus a step over the neighbours: O(log n) however many are booked.
+ * Cancelled appointments and ones whose date or time does not parse take no time.
+ *
+ * For free-slot searches each clinician also has an occupancy bitset per day:
+ * one bit per UNIT_MINUTES of opening hours, set while any appointment covers
+ * part of it. Days are stored in blocks of BLOCK_DAYS consecutive days, so a
+ * search walks plain arrays, and finding a run of free units is a few shifts
+ * and ANDs per day.
+ */
+public class AppointmentSchedule {
+    public static final int SLOT_MINUTES = 30;
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    private static final String CANCELLED = "Cancelled";
+    // Opening hours searched for free slots, and the granularity of the occupancy bitsets
+    public static final int OPENING_MINUTE = 8 * 60;
+    public static final int CLOSING_MINUTE = 18 * 60;
+    public static final int UNIT_MINUTES = 5;
+    private static final int UNITS_PER_DAY = (CLOSING_MINUTE - OPENING_MINUTE) / UNIT_MINUTES;
+    private static final int WORDS_PER_DAY = 2; // 64 < UNITS_PER_DAY <= 128
+    private static final int BLOCK_DAYS = 64;
+
+    private static final Comparator<Slot> SLOT_ORDER = Comparator.comparing((Slot slot) -> slot.date)
+            .thenComparingInt(slot -> slot.minute).thenComparing(slot -> slot.clinicianID);
+
+    private final Map<String, Timeline> byClinician = new HashMap<>();
+    private final Map<String, Timeline> byPatient = new HashMap<>();
+    // Clinician ID to epoch-day / BLOCK_DAYS to the occupancy words of those days; blocks with no bookings are absent
+    private final Map<String, Map<Integer, long[]>> busy = new HashMap<>();
+
+    public static AppointmentSchedule of(Collection<Appointment> appointments) {
+        // Add in start order, so every insert is an append: (start << 32 | position) sorts as one primitive array
+        Appointment[] items = appointments.toArray(new Appointment[0]);
+        long[] keys = new long[items.length];
+        int count = 0;
+        for (int i = 0; i < items.length; i++) {
+            long start = startOf(items[i]);
+            if (start >= 0) {
+                keys[count++] = start << 32 | i;
+            }
+        }
+        Arrays.sort(keys, 0, count);
+        AppointmentSchedule schedule = new AppointmentSchedule();
+        for (int i = 0; i < count; i++) {
+            schedule.add(items[(int) keys[i]], keys[i] >>> 32);
+        }
+        return schedule;
+    }
+
+    public void add(Appointment a) {
+        long start = startOf(a);
+        if (start >= 0) {
+            add(a, start);
+        }
+    }
+
+    private void add(Appointment a, long start) {
+        byClinician.computeIfAbsent(a.getClinicianID(), k -> new Timeline()).insert(start, a);
+        byPatient.computeIfAbsent(a.getPatientID(), k -> new Timeline()).insert(start, a);
+        if (coversOpeningHours(start)) {
+            int day = (int) (start / MINUTES_PER_DAY);
+            long[] block = busy.computeIfAbsent(a.getClinicianID(), k -> new HashMap<>())
+                               .computeIfAbsent(day / BLOCK_DAYS, k -> new long[BLOCK_DAYS * WORDS_PER_DAY]);
+            mark(block, day % BLOCK_DAYS * WORDS_PER_DAY, start);
+        }
+    }
+
+    // Remove exactly this instance, as it was when it was added
+    public void remove(Appointment a) {
+        long start = startOf(a);
+        if (start < 0) {
+            return;
+        }
+        delete(byClinician, a.getClinicianID(), start, a);
+        delete(byPatient, a.getPatientID(), start, a);
+        if (coversOpeningHours(start)) {
+            remark(a.getClinicianID(), (int) (start / MINUTES_PER_DAY));
+        }
+    }
+
+    /**
+     * Booked appointments that overlap this one for its clinician or its patient
+     * An appointment with the same ID is left out, so an edit does not conflict with itself.
+     */
+    public List<Appointment> conflicts(Appointment a) {
+        List<Appointment> out = new ArrayList<>();
+        long start = startOf(a);
+        if (start < 0) {
+            return out;
+        }
+        Timeline clinician = byClinician.get(a.getClinicianID());
+        if (clinician != null) {
+            clinician.overlapping(start, a.getAppointmentID(), out);
+        }
+        Timeline patient = byPatient.get(a.getPatientID());
+        if (patient != null) {
+            int before = out.size();
+            patient.overlapping(start, a.getAppointmentID(), out);
+            // An appointment with the same clinician and patient was already found through the clinician
+            for (int i = out.size() - 1; i >= before; i--) {
+                if (out.get(i).getClinicianID().equals(a.getClinicianID())) {
+                    out.remove(i);
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Earliest free slot of each of these clinicians on each day from fromDay to toDay, both inclusive
+     * Ordered by date, then time, then clinician; at most limit slots. A slot starts on a
+     * UNIT_MINUTES boundary within opening hours and ends by closing time.
+     */
+    public List<Slot> freeSlots(Collection<String> clinicianIDs, LocalDate fromDay, LocalDate toDay,
+                                int slotMinutes, int limit) {
+        if (slotMinutes <= 0 || slotMinutes > CLOSING_MINUTE - OPENING_MINUTE) {
+            throw new IllegalArgumentException("Slot length must be 1 to " + (CLOSING_MINUTE - OPENING_MINUTE) + " minutes");
+        }
+        int units = (slotMinutes + UNIT_MINUTES - 1) / UNIT_MINUTES;
+        List<Slot> found = new ArrayList<>();
+        if (limit <= 0) {
+            return found;
+        }
+        long lastDay = toDay.toEpochDay(); // no need to look past the day of the limit-th slot found so far
+        for (String clinicianID : clinicianIDs) {
+            Map<Integer, long[]> blocks = busy.get(clinicianID);
+            int taken = 0;
+            for (long day = fromDay.toEpochDay(); day <= lastDay && taken < limit; day++) {
+                long[] block = blocks != null ? blocks.get((int) (day / BLOCK_DAYS)) : null;
+                int unit = block == null ? 0 : firstRun(block, (int) (day % BLOCK_DAYS) * WORDS_PER_DAY, units);
+                if (block != null && unit < 0) {
+                    // Skip the rest of the block quickly, day by day, without another map lookup
+                    long end = Math.min(lastDay, (day / BLOCK_DAYS + 1) * BLOCK_DAYS - 1);
+                    while (day < end && unit < 0) {
+                        day++;
+                        unit = firstRun(block, (int) (day % BLOCK_DAYS) * WORDS_PER_DAY, units);
+                    }
+                    if (unit < 0) {
+                        continue;
+                    }
+                }
+                found.add(new Slot(clinicianID, LocalDate.ofEpochDay(day), OPENING_MINUTE + unit * UNIT_MINUTES));
+                taken++;
+            }
+            if (found.size() >= limit) {
+                found.sort(SLOT_ORDER);
+                found.subList(limit, found.size()).clear();
+                lastDay = found.get(limit - 1).date.toEpochDay();
+            }
+        }
+        found.sort(SLOT_ORDER);
+        return found.size() > limit ? new ArrayList<>(found.subList(0, limit)) : found;
+    }
+
+    // First unit of the day at offset starting a run of free units that ends by closing time, -1 if none
+    private static int firstRun(long[] block, int offset, int units) {
+        // Bit t of (lo, hi) is set when units t .. t + units - 1 are all free
+        long freeLo = ~block[offset];
+        long freeHi = ~block[offset + 1] & ((1L << (UNITS_PER_DAY - 64)) - 1);
+        long lo = freeLo;
+        long hi = freeHi;
+        for (int shift = 1; shift < units && (lo | hi) != 0; shift++) {
+            lo &= shift < 64 ? freeLo >>> shift | freeHi << (64 - shift) : freeHi >>> (shift - 64);
+            hi &= shift < 64 ? freeHi >>> shift : 0;
+        }
+        if (lo != 0) {
+            return Long.numberOfTrailingZeros(lo);
+        }
+        return hi != 0 ? 64 + Long.numberOfTrailingZeros(hi) : -1;
+    }
+
+    private static boolean coversOpeningHours(long start) {
+        int minute = (int) (start % MINUTES_PER_DAY);
+        return minute < CLOSING_MINUTE && minute + SLOT_MINUTES > OPENING_MINUTE;
+    }
+
+    // Set the units an appointment starting at start touches, in the day at offset
+    private static void mark(long[] block, int offset, long start) {
+        int minute = (int) (start % MINUTES_PER_DAY);
+        int first = Math.max(0, (minute - OPENING_MINUTE) / UNIT_MINUTES);
+        int last = Math.min(UNITS_PER_DAY, (minute + SLOT_MINUTES - OPENING_MINUTE + UNIT_MINUTES - 1) / UNIT_MINUTES);
+        for (int unit = first; unit < last; unit++) {
+            block[offset + (unit >>> 6)] |= 1L << unit;
+        }
+    }
+
+    // Rebuild one clinician-day after a removal, other appointments may still cover the freed units
+    private void remark(String clinicianID, int day) {
+        Map<Integer, long[]> blocks = busy.get(clinicianID);
+        long[] block = blocks != null ? blocks.get(day / BLOCK_DAYS) : null;
+        if (block == null) {
+            return;
+        }
+        int offset = day % BLOCK_DAYS * WORDS_PER_DAY;
+        Arrays.fill(block, offset, offset + WORDS_PER_DAY, 0);
+        Timeline timeline = byClinician.get(clinicianID);
+        if (timeline != null) {
+            long dayStart = (long) day * MINUTES_PER_DAY;
+            for (int i = timeline.firstAfter(dayStart - 1); i < timeline.size
+                    && timeline.starts[i] < dayStart + MINUTES_PER_DAY; i++) {
+                if (coversOpeningHours(timeline.starts[i])) {
+                    mark(block, offset, timeline.starts[i]);
+                }
+            }
+        }
+        for (long word : block) {
+            if (word != 0) {
+                return;
+            }
+        }
+        blocks.remove(day / BLOCK_DAYS);
+        if (blocks.isEmpty()) {
+            busy.remove(clinicianID);
+        }
+    }
+
+    // Start as minutes since the epoch, -1 if the appointment takes no time
+    static long startOf(Appointment a) {
+        if (CANCELLED.equalsIgnoreCase(a.getStatus())) {
+            return -1;
+        }
+        int day = AppointmentColumnStore.parseDate(a.getDate());
+        int minute = AppointmentColumnStore.parseTime(a.getTime());
+        if (day < 0 || minute < 0) {
+            return -1;
+        }
+        return (long) day * MINUTES_PER_DAY + minute;
+    }
+
+    private static void delete(Map<String, Timeline> timelines, String owner, long start, Appointment a) {
+        Timeline timeline = timelines.get(owner);
+        if (timeline != null && timeline.delete(start, a) && timeline.size == 0) {
+            timelines.remove(owner);
+        }
+    }
+
+    /**
+     * A free slot found by freeSlots()
+     */
+    public static class Slot {
+        public final String clinicianID;
+        public final LocalDate date;
+        public final int minute; // minute-of-day it starts at
+
+        Slot(String clinicianID, LocalDate date, int minute) {
+            this.clinicianID = clinicianID;
+            this.date = date;
+            this.minute = minute;
+        }
+
+        // "HH:mm", the format of Appointment.getTime()
+        public String getTime() {
+            int hour = minute / 60;
+            int min = minute % 60;
+            return (hour < 10 ? "0" : "") + hour + ":" + (min < 10 ? "0" : "") + min;
+        }
+
+        @Override
+        public String toString() {
+            return clinicianID + " " + date + " " + getTime();
+        }
+    }
+
+    /**
+     * One owner's appointments sorted by start; inserts shift the tail, which is short per owner
+     */
+    private static class Timeline {
+        long[] starts = new long[4];
+        Appointment[] items = new Appointment[4];
+        int size;
+
+        void insert(long start, Appointment a) {
+            int at = firstAfter(start);
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                items = Arrays.copyOf(items, size * 2);
+            }
+            System.arraycopy(starts, at, starts, at + 1, size - at);
+            System.arraycopy(items, at, items, at + 1, size - at);
+            starts[at] = start;
+            items[at] = a;
+            size++;
+        }
+
+        boolean delete(long start, Appointment a) {
+            for (int i = firstAtOrAfter(start); i < size && starts[i] == start; i++) {
+                if (items[i] == a) {
+                    System.arraycopy(starts, i + 1, starts, i, size - i - 1);
+                    System.arraycopy(items, i + 1, items, i, size - i - 1);
+                    items[--size] = null;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Appointments starting less than a slot before or after start
+        void overlapping(long start, String excludeID, List<Appointment> out) {
+            for (int i = firstAfter(start - SLOT_MINUTES); i < size && starts[i] < start + SLOT_MINUTES; i++) {
+                if (!items[i].getAppointmentID().equals(excludeID)) {
+                    out.add(items[i]);
+                }
+            }
+        }
+
+        private int firstAtOrAfter(long start) {
+            return firstAfter(start - 1);
+        }
+
+        // Index of the first entry starting after start
+        int firstAfter(long start) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] <= start) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Outstanding work of every clinician, for routing referrals to the least busy one
+ * A clinician's load is their Scheduled appointments plus their open referrals. A
+ * referral is open until its patient has an appointment with that clinician
+ * (any status but Cancelled), since by then the booking carries the work.
+ * Counts per clinician and patient are updated from each change, never
+ * recomputed, and each specialization keeps its clinicians in an indexed
+ * binary min-heap ordered by load, then ID. Routing reads the top of the heap
+ * and a change of load moves one entry up or down: O(log n) either way.
+ * Only pairs of clinician and patient with a referral or a booking are kept,
+ * and a referral's ID only as long as its pair is, so memory follows the open
+ * work rather than every referral ever made.
+ */
+public class ClinicianLoad {
+    private static final String SCHEDULED = "Scheduled";
+    private static final String CANCELLED = "Cancelled";
+
+    private final Function<Clinician, String> specializationOf;
+    private final Map<String, Entry> byClinician = new HashMap<>();
+    private final Map<String, Heap> bySpecialization = new HashMap<>();
+
+    /**
+     * @param specializationOf the key clinicians are grouped by, null to leave one out of routing
+     */
+    public ClinicianLoad(Function<Clinician, String> specializationOf) {
+        this.specializationOf = specializationOf;
+    }
+
+    public static ClinicianLoad of(Collection<Clinician> clinicians, Collection<Appointment> appointments,
+                                   Function<Clinician, String> specializationOf) {
+        ClinicianLoad load = new ClinicianLoad(specializationOf);
+        for (Clinician c : clinicians) {
+            load.clinicianChanged(null, c);
+        }
+        for (Appointment a : appointments) {
+            load.appointmentChanged(null, a);
+        }
+        return load;
+    }
+
+    /**
+     * Pick the least loaded clinician of a specialization and count a referral of the patient to them
+     * Concurrent routings see each other's referrals. The caller creates the referral
+     * afterwards, outside this lock, and passes it to referralRouted().
+     * @return the clinician's ID, or null if no clinician has the specialization
+     */
+    public synchronized String route(String specialization, String patientID) {
+        Heap heap = bySpecialization.get(specialization);
+        if (heap == null || heap.size == 0) {
+            return null;
+        }
+        Entry e = heap.entries[0];
+        count(e, patientID, null);
+        return e.clinicianID;
+    }
+
+    // Name the referral that route() counted; it is not counted again
+    public synchronized void referralRouted(Referral.ReferralData referral) {
+        Entry e = byClinician.get(referral.toClinicianID);
+        Pair pair = e == null ? null : e.patients.get(referral.patientID);
+        int unnamed = pair == null ? -1 : pair.referralIDs.indexOf(null);
+        if (unnamed >= 0) {
+            pair.referralIDs.set(unnamed, referral.referralID);
+        }
+    }
+
+    public synchronized int loadOf(String clinicianID) {
+        Entry e = byClinician.get(clinicianID);
+        return e == null ? 0 : e.load();
+    }
+
+    // Count a new referral; counting the same referral again has no effect
+    public synchronized void referralAdded(Referral.ReferralData referral) {
+        Entry e = entry(referral.toClinicianID);
+        Pair pair = e.patients.get(referral.patientID);
+        if (pair != null && pair.referralIDs.contains(referral.referralID)) {
+            return;
+        }
+        count(e, referral.patientID, referral.referralID);
+    }
+
+    // A referral ID of null is one that route() counted before it was created
+    private void count(Entry e, String patientID, String referralID) {
+        Pair pair = e.patients.computeIfAbsent(patientID, k -> new Pair());
+        pair.referralIDs.add(referralID);
+        if (pair.appointments == 0) {
+            adjust(e, 1, 0);
+        }
+    }
+
+    // Store listener: old is null for an insert, item is null for a delete
+    public synchronized void appointmentChanged(Appointment old, Appointment item) {
+        if (old != null) {
+            appointment(old, -1);
+        }
+        if (item != null) {
+            appointment(item, 1);
+        }
+    }
+
+    // Store listener: a clinician joins, leaves or moves between specializations; their load stays
+    public synchronized void clinicianChanged(Clinician old, Clinician item) {
+        if (old != null) {
+            Entry e = byClinician.get(old.getClinicianID());
+            if (e != null && e.heap != null) {
+                e.heap.remove(e);
+            }
+        }
+        if (item != null) {
+            Entry e = entry(item.getClinicianID());
+            String specialization = specializationOf.apply(item);
+            if (specialization != null) {
+                bySpecialization.computeIfAbsent(specialization, k -> new Heap()).insert(e);
+            }
+        }
+    }
+
+    private void appointment(Appointment a, int delta) {
+        String status = a.getStatus();
+        if (CANCELLED.equalsIgnoreCase(status)) {
+            return;
+        }
+        int booked = SCHEDULED.equalsIgnoreCase(status) ? delta : 0;
+        Entry e = entry(a.getClinicianID());
+        Pair pair = e.patients.computeIfAbsent(a.getPatientID(), k -> new Pair());
+        int before = pair.appointments;
+        pair.appointments += delta;
+        int referrals = 0;
+        if (before == 0 && pair.appointments > 0) {
+            referrals = -pair.referralIDs.size(); // the patient's referrals to this clinician are now booked
+        } else if (before > 0 && pair.appointments == 0) {
+            referrals = pair.referralIDs.size();
+        }
+        if (pair.referralIDs.isEmpty() && pair.appointments == 0) {
+            e.patients.remove(a.getPatientID());
+        }
+        adjust(e, referrals, booked);
+    }
+
+    private static void adjust(Entry e, int referrals, int booked) {
+        if (referrals == 0 && booked == 0) {
+            return;
+        }
+        int before = e.load();
+        e.openReferrals += referrals;
+        e.booked += booked;
+        if (e.heap != null) {
+            if (e.load() < before) {
+                e.heap.up(e.position);
+            } else {
+                e.heap.down(e.position);
+            }
+        }
+    }
+
+    private Entry entry(String clinicianID) {
+        return byClinician.computeIfAbsent(clinicianID, Entry::new);
+    }
+
+    private static int compare(Entry a, Entry b) {
+        int byLoad = Integer.compare(a.load(), b.load());
+        return byLoad != 0 ? byLoad : a.clinicianID.compareTo(b.clinicianID);
+    }
+
+    private static class Entry {
+        final String clinicianID;
+        final Map<String, Pair> patients = new HashMap<>(); // by patient ID
+        int openReferrals;
+        int booked;
+        Heap heap;    // null while the clinician is not routable
+        int position; // index in heap.entries
+
+        Entry(String clinicianID) {
+            this.clinicianID = clinicianID;
+        }
+
+        int load() {
+            return openReferrals + booked;
+        }
+    }
+
+    // A patient's referrals to one clinician and their appointments other than cancelled with them
+    private static class Pair {
+        final List<String> referralIDs = new ArrayList<>(1);
+        int appointments;
+    }
+
+    /**
+     * Binary min-heap whose entries know their own position, so any one can be moved or removed in O(log n)
+     */
+    private static class Heap {
+        Entry[] entries = new Entry[8];
+        int size;
+
+        void insert(Entry e) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            e.heap = this;
+            place(e, size++);
+            up(e.position);
+        }
+
+        void remove(Entry e) {
+            int at = e.position;
+            Entry last = entries[--size];
+            entries[size] = null;
+            e.heap = null;
+            if (last != e) {
+                place(last, at);
+                up(at);
+                down(last.position);
+            }
+        }
+
+        void up(int at) {
+            Entry e = entries[at];
+            while (at > 0) {
+                int parent = (at - 1) >>> 1;
+                if (compare(entries[parent], e) <= 0) {
+                    break;
+                }
+                place(entries[parent], at);
+                at = parent;
+            }
+            place(e, at);
+        }
+
+        void down(int at) {
+            Entry e = entries[at];
+            while (true) {
+                int child = 2 * at + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && compare(entries[child + 1], entries[child]) < 0) {
+                    child++;
+                }
+                if (compare(e, entries[child]) <= 0) {
+                    break;
+                }
+                place(entries[child], at);
+                at = child;
+            }
+            place(e, at);
+        }
+
+        private void place(Entry e, int at) {
+            entries[at] = e;
+            e.position = at;
+        }
+    }
+}
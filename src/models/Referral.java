@@ -1,26 +1,77 @@
 package models;
 
-import java.io.FileWriter;
+import utils.IdSequence;
+import utils.TextTemplate;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Singleton Pattern Implementation for Referral Management
  * Ensures only one instance handles all referrals
+ *
+ * Referrals are an append-only queue persisted to data/referrals.csv and
+ * recovered from it on startup. Producers never block each other on the
+ * queue: it is a ConcurrentLinkedQueue, and IDs come from a persisted
+ * IdSequence, so they keep rising across restarts. A referral is on disk
+ * before addReferral() returns; whichever thread gets the file lock writes
+ * every referral waiting at that moment, so concurrent adds share one write.
  */
 public class Referral {
+    private static final String REFERRALS_FILE = "data/referrals.csv";
+    private static final String HEADER = "ReferralID,PatientID,PatientName,FromClinicianID,ToClinicianID,Timestamp,Reason";
+    
+    private static final String EMAIL_TEXT =
+        "===============================================\n" +
+        "         MEDICAL REFERRAL NOTIFICATION\n" +
+        "===============================================\n\n" +
+        "Referral ID: {{referralID}}\n" +
+        "Date & Time: {{timestamp}}\n\n" +
+        "TO: Clinician {{toClinicianID}}\n" +
+        "FROM: Clinician {{fromClinicianID}}\n\n" +
+        "PATIENT INFORMATION:\n" +
+        "- Patient ID: {{patientID}}\n" +
+        "- Patient Name: {{patientName}}\n\n" +
+        "REFERRAL REASON:\n" +
+        "{{reason}}\n\n" +
+        "Please review this referral and schedule an appointment at your earliest convenience.\n\n" +
+        "===============================================\n";
+    private static final TextTemplate<ReferralData> EMAIL_TEMPLATE = compileEmailTemplate();
+    
     // Singleton instance
-    private static Referral instance;
+    private static volatile Referral instance;
     
-    // Referral queue
-    private List<ReferralData> referralQueue;
+    // Referrals in the order they were saved
+    private final ConcurrentLinkedQueue<ReferralData> referralQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger referralCount = new AtomicInteger();
+    // Created but not yet written to the file
+    private final ConcurrentLinkedQueue<ReferralData> unsaved = new ConcurrentLinkedQueue<>();
+    private final IdSequence referralIds = new IdSequence(REFERRALS_FILE + ".seq", "REF", 4);
+    private final Object fileLock = new Object();
+    private Writer writer; // guarded by fileLock
+    private volatile List<ReferralData> snapshot; // all referrals when it was taken, rebuilt once the count moves on
     
     // Private constructor (Singleton pattern)
     private Referral() {
-        referralQueue = new ArrayList<>();
+        recover();
     }
     
     // Get singleton instance
@@ -35,12 +86,32 @@ public class Referral {
         return instance;
     }
     
-    // Add referral to queue
-    public void addReferral(String patientID, String patientName, 
+    // Close the referral file and save the ID sequence, if referrals were ever used
+    public static void shutdown() {
+        Referral current = instance;
+        if (current != null) {
+            current.close();
+        }
+    }
+    
+    private static TextTemplate<ReferralData> compileEmailTemplate() {
+        Map<String, TextTemplate.Field<ReferralData>> fields = new HashMap<>();
+        fields.put("referralID", (r, out) -> out.append(r.referralID));
+        fields.put("timestamp", Referral::appendTimestamp);
+        fields.put("toClinicianID", (r, out) -> out.append(r.toClinicianID));
+        fields.put("fromClinicianID", (r, out) -> out.append(r.fromClinicianID));
+        fields.put("patientID", (r, out) -> out.append(r.patientID));
+        fields.put("patientName", (r, out) -> out.append(r.patientName));
+        fields.put("reason", (r, out) -> out.append(r.reason));
+        return TextTemplate.compile(EMAIL_TEXT, fields);
+    }
+    
+    // Add referral to queue, returns the new referral once it is saved
+    public ReferralData addReferral(String patientID, String patientName, 
                            String fromClinicianID, String toClinicianID,
                            String reason) {
         ReferralData referral = new ReferralData(
-            generateReferralID(),
+            referralIds.next(),
             patientID,
             patientName,
             fromClinicianID,
@@ -48,57 +119,191 @@ public class Referral {
             reason,
             LocalDateTime.now()
         );
+        unsaved.add(referral);
+        save();
         referralQueue.add(referral);
+        referralCount.incrementAndGet();
+        return referral;
+    }
+    
+    // Write every unsaved referral; a caller whose referral another thread already wrote returns at once
+    private void save() {
+        synchronized (fileLock) {
+            if (unsaved.isEmpty()) {
+                return;
+            }
+            StringBuilder lines = new StringBuilder();
+            ReferralData referral;
+            while ((referral = unsaved.poll()) != null) {
+                appendCSV(lines, referral);
+            }
+            try {
+                if (writer == null) {
+                    writer = openForAppend();
+                }
+                writer.append(lines);
+                writer.flush();
+            } catch (IOException e) {
+                System.err.println("Error saving referrals: " + e.getMessage());
+            }
+        }
     }
     
-    // Generate email file
-    public boolean generateEmailFile(ReferralData referral) {
-        String filename = "output/referral_email_" + referral.referralID + ".txt";
-        try (FileWriter writer = new FileWriter(filename)) {
-            writer.write(generateEmailContent(referral));
-            return true;
+    private void close() {
+        synchronized (fileLock) {
+            try {
+                if (writer != null) {
+                    writer.close();
+                }
+            } catch (IOException e) {
+                System.err.println("Error closing referrals: " + e.getMessage());
+            }
+            writer = null;
+        }
+        referralIds.close();
+    }
+    
+    // Load the saved referrals; a line torn by a crash is skipped
+    private void recover() {
+        Path path = Paths.get(REFERRALS_FILE);
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (BufferedReader br = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line = br.readLine(); // Skip header
+            while ((line = br.readLine()) != null) {
+                ReferralData referral = parseCSV(line);
+                if (referral != null) {
+                    referralQueue.add(referral);
+                    referralCount.incrementAndGet();
+                    referralIds.observe(referral.referralID);
+                }
+            }
         } catch (IOException e) {
-            e.printStackTrace();
-            return false;
+            System.err.println("Error loading referrals: " + e.getMessage());
         }
     }
     
-    // Generate email content
-    private String generateEmailContent(ReferralData referral) {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-        StringBuilder email = new StringBuilder();
-        
-        email.append("===============================================\n");
-        email.append("         MEDICAL REFERRAL NOTIFICATION\n");
-        email.append("===============================================\n\n");
-        
-        email.append("Referral ID: ").append(referral.referralID).append("\n");
-        email.append("Date & Time: ").append(referral.timestamp.format(formatter)).append("\n\n");
-        
-        email.append("TO: Clinician ").append(referral.toClinicianID).append("\n");
-        email.append("FROM: Clinician ").append(referral.fromClinicianID).append("\n\n");
-        
-        email.append("PATIENT INFORMATION:\n");
-        email.append("- Patient ID: ").append(referral.patientID).append("\n");
-        email.append("- Patient Name: ").append(referral.patientName).append("\n\n");
-        
-        email.append("REFERRAL REASON:\n");
-        email.append(referral.reason).append("\n\n");
-        
-        email.append("Please review this referral and schedule an appointment at your earliest convenience.\n\n");
-        email.append("===============================================\n");
-        
-        return email.toString();
+    // Writer appending to the file, with a header if it is new and a line break if a crash tore its last line
+    private static Writer openForAppend() throws IOException {
+        Path path = Paths.get(REFERRALS_FILE);
+        boolean fresh = !Files.exists(path) || Files.size(path) == 0;
+        boolean torn = false;
+        if (!fresh) {
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+                file.seek(file.length() - 1);
+                torn = file.read() != '\n';
+            }
+        }
+        Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                                             StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (fresh) {
+            out.write(HEADER + "\n");
+        } else if (torn) {
+            out.write('\n');
+        }
+        return out;
+    }
+    
+    // Email text for a referral, as written to its file and shown in the preview
+    public String generateEmailContent(ReferralData referral) {
+        return EMAIL_TEMPLATE.render(referral);
+    }
+    
+    // Write a referral's email as UTF-8 through the buffer, without building it as a String first
+    public void writeEmail(ReferralData referral, WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        EMAIL_TEMPLATE.write(referral, channel, buffer);
     }
     
-    // Generate unique referral ID
-    private String generateReferralID() {
-        return "REF" + String.format("%04d", referralQueue.size() + 1);
+    // yyyy-MM-dd HH:mm:ss, appended digit by digit instead of through a DateTimeFormatter
+    private static void appendTimestamp(ReferralData referral, StringBuilder out) {
+        LocalDateTime t = referral.timestamp;
+        appendPadded(out, t.getYear(), 4).append('-');
+        appendPadded(out, t.getMonthValue(), 2).append('-');
+        appendPadded(out, t.getDayOfMonth(), 2).append(' ');
+        appendPadded(out, t.getHour(), 2).append(':');
+        appendPadded(out, t.getMinute(), 2).append(':');
+        appendPadded(out, t.getSecond(), 2);
     }
     
-    // Get all referrals
+    private static StringBuilder appendPadded(StringBuilder out, int value, int width) {
+        for (int limit = 10, digits = 1; digits < width; limit *= 10, digits++) {
+            if (value < limit) {
+                out.append('0');
+            }
+        }
+        return out.append(value);
+    }
+    
+    // Get all referrals, as a read-only list in the order they were saved
     public List<ReferralData> getAllReferrals() {
-        return new ArrayList<>(referralQueue);
+        List<ReferralData> current = snapshot;
+        if (current == null || current.size() != referralCount.get()) {
+            current = Collections.unmodifiableList(new ArrayList<>(referralQueue));
+            snapshot = current;
+        }
+        return current;
+    }
+    
+    // ========== CSV ==========
+    // Fields are escaped with a backslash before ',', '\\' and line breaks, so free text survives a round trip
+    
+    private static void appendCSV(StringBuilder sb, ReferralData r) {
+        escape(sb, r.referralID).append(',');
+        escape(sb, r.patientID).append(',');
+        escape(sb, r.patientName).append(',');
+        escape(sb, r.fromClinicianID).append(',');
+        escape(sb, r.toClinicianID).append(',');
+        sb.append(r.timestamp.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME)).append(',');
+        escape(sb, r.reason).append('\n');
+    }
+    
+    // Parse one saved line, null if it is malformed
+    private static ReferralData parseCSV(String line) {
+        List<String> fields = new ArrayList<>(7);
+        StringBuilder field = new StringBuilder();
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < line.length()) {
+                char next = line.charAt(++i);
+                field.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        if (fields.size() != 7 || fields.get(0).isEmpty()) {
+            return null;
+        }
+        try {
+            return new ReferralData(fields.get(0), fields.get(1), fields.get(2), fields.get(3), fields.get(4),
+                                    fields.get(6), LocalDateTime.parse(fields.get(5)));
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+    
+    private static StringBuilder escape(StringBuilder sb, String value) {
+        if (value == null) {
+            return sb;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\n') {
+                sb.append("\\n");
+            } else if (c == '\r') {
+                sb.append("\\r");
+            } else {
+                if (c == ',' || c == '\\') {
+                    sb.append('\\');
+                }
+                sb.append(c);
+            }
+        }
+        return sb;
     }
     
     // Inner class for referral data
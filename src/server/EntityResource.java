@@ -0,0 +1,271 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import controllers.HealthcareController;
+import models.*;
+import utils.Json;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * CRUD endpoints for one entity type under /{name}
+ *   GET    /{name}        all rows, or the rows matching the query parameters
+ *   GET    /{name}/{id}   one row
+ *   POST   /{name}        add a row, the ID is generated; 409 if it would double-book an appointment
+ *   PUT    /{name}/{id}   replace fields of a row; fields left out keep their value; 409 if it would double-book
+ *   DELETE /{name}/{id}   remove a row
+ * Rows are flat JSON objects with the entity's fields.
+ */
+class EntityResource<T> extends Route {
+    // Open ends of a date range; four-digit years, so they compare correctly as ISO text
+    static final LocalDate FIRST_DAY = LocalDate.of(0, 1, 1);
+    static final LocalDate LAST_DAY = LocalDate.of(9999, 12, 31);
+
+    private final Function<Map<String, String>, List<T>> lister;
+    private final Function<String, T> finder;
+    private final Predicate<T> adder;
+    private final Updater<T> updater;
+    private final Predicate<String> deleter;
+    private final Supplier<String> idGenerator;
+    private final Function<T, Map<String, Object>> toFields;
+    private final Function<Map<String, String>, T> fromFields;
+    private final String idField;
+
+    /**
+     * Replaces a row: null if there is none, false if the new row was refused, true if it was replaced
+     */
+    interface Updater<T> {
+        Boolean update(String id, T item);
+    }
+
+    /**
+     * @param lister     rows for a query, called with an empty map for all rows
+     * @param adder      adds a row, false if it was refused
+     * @param toFields   field name to value, numbers as Number
+     * @param fromFields entity from field texts, throws IllegalArgumentException for bad values
+     */
+    EntityResource(String name, LatencyStats stats, String idField,
+                   Function<Map<String, String>, List<T>> lister, Function<String, T> finder,
+                   Predicate<T> adder, Updater<T> updater, Predicate<String> deleter,
+                   Supplier<String> idGenerator, Function<T, Map<String, Object>> toFields,
+                   Function<Map<String, String>, T> fromFields) {
+        super(name, stats);
+        this.idField = idField;
+        this.lister = lister;
+        this.finder = finder;
+        this.adder = adder;
+        this.updater = updater;
+        this.deleter = deleter;
+        this.idGenerator = idGenerator;
+        this.toFields = toFields;
+        this.fromFields = fromFields;
+    }
+
+    // ========== ENTITY RESOURCES ==========
+
+    static EntityResource<Patient> patients(HealthcareController c, LatencyStats stats) {
+        return new EntityResource<>("patients", stats, "patientID",
+            q -> c.getAllPatients(), c::findPatientById, x -> { c.addPatient(x); return true; }, unrefused(c::updatePatientById),
+            c::deletePatientById, c::generatePatientID,
+            p -> fields("patientID", p.getPatientID(), "name", p.getName(), "age", p.getAge(),
+                        "gender", p.getGender(), "contactNumber", p.getContactNumber(),
+                        "address", p.getAddress(), "medicalHistory", p.getMedicalHistory()),
+            f -> new Patient(required(f, "patientID"), required(f, "name"), parseInt(required(f, "age"), "age"),
+                             required(f, "gender"), required(f, "contactNumber"), required(f, "address"), required(f, "medicalHistory")));
+    }
+
+    static EntityResource<Clinician> clinicians(HealthcareController c, LatencyStats stats) {
+        return new EntityResource<>("clinicians", stats, "clinicianID",
+            q -> c.getAllClinicians(), c::findClinicianById, x -> { c.addClinician(x); return true; }, unrefused(c::updateClinicianById),
+            c::deleteClinicianById, c::generateClinicianID,
+            cl -> fields("clinicianID", cl.getClinicianID(), "name", cl.getName(),
+                         "specialization", cl.getSpecialization(), "contactNumber", cl.getContactNumber(),
+                         "email", cl.getEmail()),
+            f -> new Clinician(required(f, "clinicianID"), required(f, "name"), required(f, "specialization"),
+                               required(f, "contactNumber"), required(f, "email")));
+    }
+
+    // Query: ?clinician=C001, ?patient=P001, ?from=2025-01-01&to=2025-01-31, clinician combines with from/to
+    static EntityResource<Appointment> appointments(HealthcareController c, LatencyStats stats) {
+        return new EntityResource<>("appointments", stats, "appointmentID",
+            q -> {
+                LocalDate from = parseDate(q.get("from"), FIRST_DAY);
+                LocalDate to = parseDate(q.get("to"), LAST_DAY);
+                boolean dated = q.containsKey("from") || q.containsKey("to");
+                if (q.containsKey("clinician")) {
+                    return dated ? c.getAppointmentsForClinicianBetween(q.get("clinician"), from, to)
+                                 : c.getAppointmentsForClinician(q.get("clinician"));
+                }
+                if (q.containsKey("patient")) {
+                    return c.getAppointmentsForPatient(q.get("patient"));
+                }
+                return dated ? c.getAppointmentsBetween(from, to) : c.getAllAppointments();
+            },
+            c::findAppointmentById, a -> c.bookAppointment(a).isEmpty(), (id, a) -> {
+                List<Appointment> conflicts = c.rescheduleAppointment(id, a);
+                return conflicts == null ? null : conflicts.isEmpty();
+            },
+            c::deleteAppointmentById, c::generateAppointmentID,
+            a -> fields("appointmentID", a.getAppointmentID(), "patientID", a.getPatientID(),
+                        "clinicianID", a.getClinicianID(), "date", a.getDate(), "time", a.getTime(),
+                        "status", a.getStatus()),
+            f -> new Appointment(required(f, "appointmentID"), required(f, "patientID"), required(f, "clinicianID"),
+                                 required(f, "date"), required(f, "time"), required(f, "status")));
+    }
+
+    // Query: ?patient=P001 or ?clinician=C001
+    static EntityResource<Prescription> prescriptions(HealthcareController c, LatencyStats stats) {
+        return new EntityResource<>("prescriptions", stats, "prescriptionID",
+            q -> q.containsKey("patient") ? c.getPrescriptionsForPatient(q.get("patient"))
+               : q.containsKey("clinician") ? c.getPrescriptionsForClinician(q.get("clinician"))
+               : c.getAllPrescriptions(),
+            c::findPrescriptionById, x -> { c.addPrescription(x); return true; }, unrefused(c::updatePrescriptionById),
+            c::deletePrescriptionById, c::generatePrescriptionID,
+            p -> fields("prescriptionID", p.getPrescriptionID(), "patientID", p.getPatientID(),
+                        "clinicianID", p.getClinicianID(), "medication", p.getMedication(),
+                        "dosage", p.getDosage(), "date", p.getDate()),
+            f -> new Prescription(required(f, "prescriptionID"), required(f, "patientID"), required(f, "clinicianID"),
+                                  required(f, "medication"), required(f, "dosage"), required(f, "date")));
+    }
+
+    // ========== REQUESTS ==========
+
+    @Override
+    protected int handle(HttpExchange exchange, String method, String id) throws IOException {
+        if (id == null) {
+            if (method.equals("GET")) {
+                return sendRows(exchange, lister.apply(query(exchange)));
+            }
+            if (method.equals("POST")) {
+                Map<String, String> body = Json.parseObject(readBody(exchange));
+                body.put(idField, idGenerator.get());
+                T item = fromFields.apply(body);
+                if (!adder.test(item)) {
+                    return sendError(exchange, 409, "Conflicts with an existing booking");
+                }
+                return sendJson(exchange, 201, toJson(item));
+            }
+            return sendError(exchange, 405, "Method not allowed");
+        }
+        T existing = finder.apply(id);
+        if (existing == null) {
+            return sendError(exchange, 404, "No " + idField + " " + id);
+        }
+        switch (method) {
+            case "GET":
+                return sendJson(exchange, 200, toJson(existing));
+            case "PUT":
+                Map<String, String> merged = new LinkedHashMap<>();
+                toFields.apply(existing).forEach((k, v) -> merged.put(k, v == null ? null : String.valueOf(v)));
+                merged.putAll(Json.parseObject(readBody(exchange)));
+                merged.put(idField, id);
+                T item = fromFields.apply(merged);
+                Boolean replaced = updater.update(id, item);
+                if (replaced == null) {
+                    return sendError(exchange, 404, "No " + idField + " " + id);
+                }
+                if (!replaced) {
+                    return sendError(exchange, 409, "Conflicts with an existing booking");
+                }
+                return sendJson(exchange, 200, toJson(item));
+            case "DELETE":
+                if (!deleter.test(id)) {
+                    return sendError(exchange, 404, "No " + idField + " " + id);
+                }
+                exchange.sendResponseHeaders(204, -1);
+                return 204;
+            default:
+                return sendError(exchange, 405, "Method not allowed");
+        }
+    }
+
+    // Stream a JSON array without building the whole body in memory
+    private int sendRows(HttpExchange exchange, List<T> rows) throws IOException {
+        try (ChunkedJsonWriter out = new ChunkedJsonWriter(exchange)) {
+            StringBuilder sb = out.buffer();
+            sb.append('[');
+            for (int i = 0; i < rows.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                appendJson(sb, rows.get(i));
+                out.flushIfFull();
+            }
+            sb.append(']');
+        }
+        return 200;
+    }
+
+    private String toJson(T item) {
+        StringBuilder sb = new StringBuilder();
+        appendJson(sb, item);
+        return sb.toString();
+    }
+
+    private void appendJson(StringBuilder sb, T item) {
+        sb.append('{');
+        for (Map.Entry<String, Object> f : toFields.apply(item).entrySet()) {
+            if (f.getValue() instanceof Number) {
+                Json.field(sb, f.getKey(), ((Number) f.getValue()).longValue());
+            } else {
+                Json.field(sb, f.getKey(), (String) f.getValue());
+            }
+        }
+        sb.append('}');
+    }
+
+    private static Map<String, Object> fields(Object... namesAndValues) {
+        Map<String, Object> out = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            out.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return out;
+    }
+
+    // An updater that never refuses a row, only misses it
+    private static <T> Updater<T> unrefused(BiPredicate<String, T> update) {
+        return (id, item) -> update.test(id, item) ? Boolean.TRUE : null;
+    }
+
+    private static String required(Map<String, String> fields, String name) {
+        String value = fields.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing " + name);
+        }
+        // Entities are saved as unescaped CSV lines, so these would split or add records
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch == ',' || ch == '\r' || ch == '\n') {
+                throw new IllegalArgumentException("Invalid " + name + ": commas and line breaks are not allowed");
+            }
+        }
+        return value;
+    }
+
+    private static int parseInt(String text, String field) {
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + field + ": " + text);
+        }
+    }
+
+    static LocalDate parseDate(String text, LocalDate missing) {
+        if (text == null) {
+            return missing;
+        }
+        try {
+            return LocalDate.parse(text);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date: " + text);
+        }
+    }
+}
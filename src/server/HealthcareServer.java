@@ -0,0 +1,257 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import controllers.HealthcareController;
+import models.Referral;
+import utils.EmailDispatcher;
+import utils.Json;
+import utils.Outbox;
+import utils.WriteBehindFlusher;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Headless mode: serves one HealthcareController to any number of clients over HTTP/JSON
+ *   /patients, /clinicians, /appointments, /prescriptions   CRUD, see EntityResource
+ *   /referrals                                              GET all, POST to create; a POST with
+ *                                                           specialization instead of toClinicianID
+ *                                                           goes to that specialty's least busy clinician
+ *   /stats                                                  per-endpoint latency
+ *   /stats/emails                                           referral email throughput, queue wait and delivery
+ *   /stats/appointments?from=2025-01-01&to=2025-01-31       appointment counts, in all and per clinician
+ *   /stats/writes                                           write-behind flush latency and backlog
+ * Each request runs on its own virtual thread where the JDK has them (21+),
+ * otherwise on a cached thread pool.
+ *
+ * Referral emails are sent to the SMTP server given as host:port, or else to the
+ * one in the healthcare.smtp system property, as in the desktop app; without
+ * one they wait in the outbox.
+ *
+ * Usage: java [-Dhealthcare.smtp=host:port] server.HealthcareServer [port] [REWRITE|JOURNAL|WRITE_BEHIND] [smtp-host:port]
+ */
+public class HealthcareServer {
+    private static final int DEFAULT_PORT = 8080;
+    // Pending connections the OS may queue while all handlers are busy
+    private static final int BACKLOG = 4096;
+
+    private final HealthcareController controller;
+    private final LatencyStats stats = new LatencyStats();
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public HealthcareServer(HealthcareController controller, int port) throws IOException {
+        this.controller = controller;
+        this.server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+        this.executor = requestExecutor();
+        server.setExecutor(executor);
+        register(EntityResource.patients(controller, stats));
+        register(EntityResource.clinicians(controller, stats));
+        register(EntityResource.appointments(controller, stats));
+        register(EntityResource.prescriptions(controller, stats));
+        register(new ReferralRoute());
+        register(new StatsRoute());
+    }
+
+    private void register(Route route) {
+        server.createContext(route.path(), route);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public LatencyStats getStats() {
+        return stats;
+    }
+
+    // Stop accepting requests, give running ones a moment to finish, then save the data
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+        controller.shutdown();
+    }
+
+    // Virtual thread per request on JDK 21+, looked up reflectively so the code still builds on older JDKs
+    private static ExecutorService requestExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "http-request");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * GET /referrals lists them, POST /referrals creates one and writes its email file
+     */
+    private class ReferralRoute extends Route {
+        private final DateTimeFormatter timestampFormat = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+
+        ReferralRoute() {
+            super("referrals", stats);
+        }
+
+        @Override
+        protected int handle(HttpExchange exchange, String method, String id) throws IOException {
+            if (id != null) {
+                return sendError(exchange, 404, "Not found");
+            }
+            if (method.equals("GET")) {
+                List<Referral.ReferralData> referrals = controller.getAllReferrals();
+                StringBuilder sb = new StringBuilder("[");
+                for (Referral.ReferralData r : referrals) {
+                    if (sb.length() > 1) {
+                        sb.append(',');
+                    }
+                    appendReferral(sb, r);
+                }
+                return sendJson(exchange, 200, sb.append(']').toString());
+            }
+            if (method.equals("POST")) {
+                Map<String, String> body = Json.parseObject(readBody(exchange));
+                boolean routed = isBlank(body.get("toClinicianID")) && !isBlank(body.get("specialization"));
+                for (String field : new String[]{"patientID", "patientName", "fromClinicianID",
+                                                 routed ? "specialization" : "toClinicianID", "reason"}) {
+                    if (isBlank(body.get(field))) {
+                        throw new IllegalArgumentException("Missing " + field);
+                    }
+                }
+                Referral.ReferralData referral;
+                if (routed) {
+                    referral = controller.routeReferral(body.get("patientID"), body.get("patientName"),
+                            body.get("fromClinicianID"), body.get("specialization"), body.get("reason"));
+                    if (referral == null) {
+                        return sendError(exchange, 404, "No clinician has specialization " + body.get("specialization"));
+                    }
+                } else {
+                    referral = controller.createReferral(body.get("patientID"), body.get("patientName"),
+                            body.get("fromClinicianID"), body.get("toClinicianID"), body.get("reason"));
+                }
+                StringBuilder sb = new StringBuilder();
+                appendReferral(sb, referral);
+                return sendJson(exchange, 201, sb.toString());
+            }
+            return sendError(exchange, 405, "Method not allowed");
+        }
+
+        private boolean isBlank(String value) {
+            return value == null || value.trim().isEmpty();
+        }
+
+        private void appendReferral(StringBuilder sb, Referral.ReferralData r) {
+            sb.append('{');
+            Json.field(sb, "referralID", r.referralID);
+            Json.field(sb, "patientID", r.patientID);
+            Json.field(sb, "patientName", r.patientName);
+            Json.field(sb, "fromClinicianID", r.fromClinicianID);
+            Json.field(sb, "toClinicianID", r.toClinicianID);
+            Json.field(sb, "reason", r.reason);
+            Json.field(sb, "timestamp", r.timestamp.format(timestampFormat));
+            Outbox.Message email = controller.getReferralEmailState(r.referralID);
+            Json.field(sb, "emailState", email != null ? email.getState().name() : "QUEUED");
+            sb.append('}');
+        }
+    }
+
+    /**
+     * GET /stats, latency of every endpoint served so far; GET /stats/emails, the referral email writers;
+     * GET /stats/appointments, appointment counts, also within a date range when from or to is given;
+     * GET /stats/writes, the write-behind saver, 404 unless the controller runs in WRITE_BEHIND mode
+     */
+    private class StatsRoute extends Route {
+        StatsRoute() {
+            super("stats", stats);
+        }
+
+        @Override
+        protected int handle(HttpExchange exchange, String method, String id) throws IOException {
+            if (!method.equals("GET")
+                    || (id != null && !id.equals("emails") && !id.equals("appointments") && !id.equals("writes"))) {
+                return sendError(exchange, 404, "Not found");
+            }
+            if ("writes".equals(id)) {
+                WriteBehindFlusher.Stats writes = controller.getWriteBehindStats();
+                if (writes == null) {
+                    return sendError(exchange, 404, "Write-behind is not in use");
+                }
+                StringBuilder sb = new StringBuilder("{");
+                Json.field(sb, "queueDepth", writes.queueDepth);
+                Json.field(sb, "dirtyFiles", writes.dirtyFiles);
+                Json.field(sb, "flushes", writes.flushCount);
+                Json.field(sb, "avgFlushMicros", writes.averageFlushMicros);
+                Json.field(sb, "lastFlushMicros", writes.lastFlushMicros);
+                Json.field(sb, "maxFlushMicros", writes.maxFlushMicros);
+                return sendJson(exchange, 200, sb.append('}').toString());
+            }
+            if ("appointments".equals(id)) {
+                Map<String, String> q = query(exchange);
+                StringBuilder sb = new StringBuilder("{");
+                Map<String, Integer> byClinician = controller.countAppointmentsByClinician();
+                Json.field(sb, "appointments", byClinician.values().stream().mapToLong(Integer::longValue).sum());
+                if (q.containsKey("from") || q.containsKey("to")) {
+                    Json.field(sb, "between", controller.countAppointmentsBetween(
+                            EntityResource.parseDate(q.get("from"), EntityResource.FIRST_DAY),
+                            EntityResource.parseDate(q.get("to"), EntityResource.LAST_DAY)));
+                }
+                sb.append(",\"byClinician\":{");
+                byClinician.forEach((clinicianID, count) -> Json.field(sb, clinicianID, count));
+                return sendJson(exchange, 200, sb.append("}}").toString());
+            }
+            if (id != null) {
+                EmailDispatcher.Stats emails = controller.getReferralEmailStats();
+                StringBuilder sb = new StringBuilder("{");
+                Json.field(sb, "submitted", emails.submitted);
+                Json.field(sb, "written", emails.written);
+                Json.field(sb, "failed", emails.failed);
+                Json.field(sb, "retries", emails.retries);
+                Json.field(sb, "queueDepth", emails.queueDepth);
+                Json.field(sb, "avgWaitMicros", emails.averageWaitMicros);
+                Json.field(sb, "maxWaitMicros", emails.maxWaitMicros);
+                Json.field(sb, "perSecond", (long) emails.perSecond);
+                Outbox.Stats outbox = controller.getOutboxStats();
+                if (outbox != null) {
+                    Json.field(sb, "outboxPending", outbox.pending);
+                    Json.field(sb, "outboxDelivered", outbox.delivered);
+                    Json.field(sb, "outboxFailed", outbox.failed);
+                    Json.field(sb, "outboxRetries", outbox.retries);
+                    Json.field(sb, "outboxSegments", outbox.segments);
+                    Json.field(sb, "outboxBytes", outbox.bytes);
+                }
+                return sendJson(exchange, 200, sb.append('}').toString());
+            }
+            return sendJson(exchange, 200, stats.toJson());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        HealthcareController.PersistenceMode mode = args.length > 1
+                ? HealthcareController.PersistenceMode.valueOf(args[1])
+                : HealthcareController.PersistenceMode.JOURNAL;
+        HealthcareController controller = new HealthcareController(mode);
+        if (args.length > 2) {
+            controller.startEmailDelivery(args[2]);
+        } else {
+            controller.startEmailDelivery();
+        }
+        HealthcareServer server = new HealthcareServer(controller, port);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "http-shutdown"));
+        server.start();
+        System.out.println("Healthcare server listening on port " + server.getPort());
+    }
+}
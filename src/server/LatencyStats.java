@@ -0,0 +1,82 @@
+package server;
+
+import utils.Json;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-endpoint request latency, cheap enough to record on every request
+ * Counters are LongAdders so concurrent requests do not contend on one field.
+ * Percentiles come from a histogram of power-of-two microsecond buckets, so
+ * they are upper bounds accurate to within a factor of two.
+ */
+public class LatencyStats {
+    private static final int BUCKETS = 40;
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    // Record one request; status 500 and up counts as an error
+    public void record(String endpoint, long nanos, int status) {
+        Endpoint e = endpoints.computeIfAbsent(endpoint, k -> new Endpoint());
+        e.count.increment();
+        if (status >= 500) {
+            e.errors.increment();
+        }
+        e.totalNanos.add(nanos);
+        e.maxNanos.accumulateAndGet(nanos, Math::max);
+        long micros = Math.max(1, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        e.buckets.incrementAndGet(bucket);
+    }
+
+    // {"GET /patients": {"count": .., "errors": .., "avgMicros": .., "p50Micros": .., "p99Micros": .., "maxMicros": ..}, ...}
+    public String toJson() {
+        StringBuilder out = new StringBuilder("{");
+        for (Map.Entry<String, Endpoint> entry : new TreeMap<>(endpoints).entrySet()) {
+            Endpoint e = entry.getValue();
+            long count = e.count.sum();
+            if (out.length() > 1) {
+                out.append(',');
+            }
+            Json.quote(out, entry.getKey()).append(":{");
+            Json.field(out, "count", count);
+            Json.field(out, "errors", e.errors.sum());
+            Json.field(out, "avgMicros", count == 0 ? 0 : e.totalNanos.sum() / count / 1000);
+            long maxMicros = e.maxNanos.get() / 1000;
+            Json.field(out, "p50Micros", Math.min(maxMicros, e.percentileMicros(0.50)));
+            Json.field(out, "p99Micros", Math.min(maxMicros, e.percentileMicros(0.99)));
+            Json.field(out, "maxMicros", maxMicros);
+            out.append('}');
+        }
+        return out.append('}').toString();
+    }
+
+    private static class Endpoint {
+        final LongAdder count = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        // Upper bound of the bucket holding the given fraction of requests
+        long percentileMicros(double fraction) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += buckets.get(i);
+            }
+            long target = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= target && seen > 0) {
+                    return 1L << i;
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package server;
+
+import controllers.HealthcareController;
+import utils.CSVExporter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+
+/**
+ * Writes the patient, appointment and prescription extracts for downstream systems
+ * Date bounds apply to appointments and prescriptions, the clinician filter to both.
+ *
+ * Usage: java server.NightlyExport <dir> [--gzip] [--from yyyy-MM-dd] [--to yyyy-MM-dd] [--clinician ID]
+ */
+public class NightlyExport {
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: java server.NightlyExport <dir> [--gzip] [--from yyyy-MM-dd] "
+                    + "[--to yyyy-MM-dd] [--clinician ID]");
+            System.exit(2);
+        }
+        String dir = args[0];
+        boolean gzip = false;
+        LocalDate from = null;
+        LocalDate to = null;
+        String clinician = null;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--gzip": gzip = true; break;
+                case "--from": from = LocalDate.parse(args[++i]); break;
+                case "--to": to = LocalDate.parse(args[++i]); break;
+                case "--clinician": clinician = args[++i]; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        Files.createDirectories(Paths.get(dir));
+        String suffix = gzip ? ".csv.gz" : ".csv";
+        String clinicianID = clinician;
+
+        HealthcareController controller = new HealthcareController();
+        try {
+            report("patients", controller.exportPatients(dir + "/patients" + suffix, gzip, null));
+            report("appointments", controller.exportAppointments(dir + "/appointments" + suffix, gzip, from, to,
+                    clinicianID == null ? null : a -> a.getClinicianID().equals(clinicianID)));
+            report("prescriptions", controller.exportPrescriptions(dir + "/prescriptions" + suffix, gzip, from, to,
+                    clinicianID == null ? null : p -> p.getClinicianID().equals(clinicianID)));
+        } finally {
+            controller.shutdown();
+        }
+    }
+
+    private static void report(String what, CSVExporter.Stats stats) {
+        System.out.println(what + ": " + (stats != null ? stats : "FAILED"));
+    }
+}
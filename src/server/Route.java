@@ -0,0 +1,158 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import utils.Json;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Base handler for the endpoints under /{name}
+ * Splits off the optional /{id}, maps bad input to 400 and failures to 500,
+ * and records the latency of every request under "METHOD /name" or "METHOD /name/{id}".
+ */
+abstract class Route implements HttpHandler {
+    private static final int MAX_BODY_SIZE = 1 << 20;
+
+    private final String name;
+    private final LatencyStats stats;
+
+    Route(String name, LatencyStats stats) {
+        this.name = name;
+        this.stats = stats;
+    }
+
+    String path() {
+        return "/" + name;
+    }
+
+    /**
+     * Answer one request and return the status sent
+     * @param id the decoded path segment after /{name}, or null
+     */
+    protected abstract int handle(HttpExchange exchange, String method, String id) throws IOException;
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        String method = exchange.getRequestMethod();
+        String rest = exchange.getRequestURI().getRawPath().substring(path().length());
+        String id = null;
+        int status;
+        try {
+            if (!rest.isEmpty() && !rest.equals("/")
+                    && (rest.charAt(0) != '/' || rest.indexOf('/', 1) >= 0)) {
+                status = sendError(exchange, 404, "Not found");
+            } else {
+                if (rest.length() > 1) {
+                    id = URLDecoder.decode(rest.substring(1), StandardCharsets.UTF_8);
+                }
+                status = handle(exchange, method, id);
+            }
+        } catch (IllegalArgumentException e) {
+            status = sendError(exchange, 400, e.getMessage());
+        } catch (IOException e) {
+            status = 500; // client went away, nothing more can be sent
+        } catch (RuntimeException e) {
+            System.err.println("Error handling " + method + " " + exchange.getRequestURI() + ": " + e);
+            status = sendError(exchange, 500, "Internal error");
+        } finally {
+            exchange.close();
+        }
+        stats.record(method + " " + path() + (id != null ? "/{id}" : ""), System.nanoTime() - start, status);
+    }
+
+    // ========== HELPERS ==========
+
+    static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> out = new LinkedHashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null || raw.isEmpty()) {
+            return out;
+        }
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            out.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return out;
+    }
+
+    static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+                if (bytes.size() > MAX_BODY_SIZE) {
+                    throw new IllegalArgumentException("Request body too large");
+                }
+            }
+            return bytes.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    static int sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+        return status;
+    }
+
+    static int sendError(HttpExchange exchange, int status, String message) {
+        StringBuilder sb = new StringBuilder("{");
+        Json.field(sb, "error", message);
+        try {
+            return sendJson(exchange, status, sb.append('}').toString());
+        } catch (IOException e) {
+            return status; // headers may already be sent
+        }
+    }
+
+    /**
+     * Chunked 200 response written from a StringBuilder that is drained every 64 KB
+     */
+    static class ChunkedJsonWriter implements AutoCloseable {
+        private static final int FLUSH_SIZE = 1 << 16;
+
+        private final StringBuilder buffer = new StringBuilder(FLUSH_SIZE + 1024);
+        private final Writer out;
+
+        ChunkedJsonWriter(HttpExchange exchange) throws IOException {
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0);
+            out = new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8);
+        }
+
+        StringBuilder buffer() {
+            return buffer;
+        }
+
+        void flushIfFull() throws IOException {
+            if (buffer.length() >= FLUSH_SIZE) {
+                out.append(buffer);
+                buffer.setLength(0);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.append(buffer);
+            buffer.setLength(0);
+            out.close();
+        }
+    }
+}
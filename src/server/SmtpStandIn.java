@@ -0,0 +1,228 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * In-process SMTP server that accepts mail and keeps it in memory, for testing delivery locally
+ * Speaks enough of RFC 5321 for SmtpClient and ordinary mail tools: EHLO/HELO,
+ * MAIL, RCPT, DATA, RSET, NOOP and QUIT, and advertises PIPELINING. Replies to
+ * pipelined commands are written together once the client stops sending.
+ * Recipients can be refused to exercise the failure paths.
+ *
+ * Usage: java server.SmtpStandIn [port]   prints each message as it arrives
+ */
+public class SmtpStandIn implements AutoCloseable {
+    private final ServerSocket serverSocket;
+    private final List<Received> received = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong connections = new AtomicLong();
+    private volatile Predicate<String> refuse = recipient -> false;
+    private volatile boolean verbose;
+
+    /**
+     * One accepted message, with dot-stuffing undone and CRLF turned into \n
+     */
+    public static class Received {
+        public final String sender;
+        public final List<String> recipients;
+        public final String content;
+
+        Received(String sender, List<String> recipients, String content) {
+            this.sender = sender;
+            this.recipients = recipients;
+            this.content = content;
+        }
+    }
+
+    // Listen on localhost; port 0 picks a free one
+    public SmtpStandIn(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    public SmtpStandIn start() {
+        Thread acceptor = new Thread(this::accept, "smtp-stand-in");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return this;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    // Refuse RCPT for matching addresses with 550
+    public void refuse(Predicate<String> recipients) {
+        this.refuse = recipients;
+    }
+
+    public List<Received> getReceived() {
+        synchronized (received) {
+            return new ArrayList<>(received);
+        }
+    }
+
+    public int count() {
+        return received.size();
+    }
+
+    public long getConnections() {
+        return connections.get();
+    }
+
+    @Override
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.incrementAndGet();
+                Thread session = new Thread(() -> serve(socket), "smtp-session");
+                session.setDaemon(true);
+                session.start();
+            } catch (SocketException e) {
+                return; // closed
+            } catch (IOException e) {
+                System.err.println("Error accepting SMTP connection: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream(), 64 * 1024);
+            OutputStream out = new BufferedOutputStream(s.getOutputStream(), 8192);
+            reply(out, in, "220 localhost SMTP stand-in ready");
+            String sender = null;
+            List<String> recipients = new ArrayList<>();
+            String line;
+            while ((line = readLine(in)) != null) {
+                String upper = line.toUpperCase();
+                if (upper.startsWith("EHLO")) {
+                    sender = null;
+                    recipients.clear();
+                    reply(out, in, "250-localhost\r\n250-PIPELINING\r\n250-8BITMIME\r\n250 SIZE 10485760");
+                } else if (upper.startsWith("HELO")) {
+                    reply(out, in, "250 localhost");
+                } else if (upper.startsWith("MAIL FROM:")) {
+                    sender = address(line.substring(10));
+                    recipients.clear();
+                    reply(out, in, "250 OK");
+                } else if (upper.startsWith("RCPT TO:")) {
+                    String recipient = address(line.substring(8));
+                    if (sender == null) {
+                        reply(out, in, "503 MAIL first");
+                    } else if (refuse.test(recipient)) {
+                        reply(out, in, "550 No such user " + recipient);
+                    } else {
+                        recipients.add(recipient);
+                        reply(out, in, "250 OK");
+                    }
+                } else if (upper.equals("DATA")) {
+                    if (sender == null || recipients.isEmpty()) {
+                        reply(out, in, "554 No valid recipients");
+                        continue;
+                    }
+                    reply(out, in, "354 End data with <CR><LF>.<CR><LF>");
+                    String content = readData(in);
+                    if (content == null) {
+                        return;
+                    }
+                    Received message = new Received(sender, new ArrayList<>(recipients), content);
+                    received.add(message);
+                    if (verbose) {
+                        System.out.println("From " + sender + " to " + recipients + ", " + content.length() + " chars");
+                    }
+                    sender = null;
+                    recipients.clear();
+                    reply(out, in, "250 OK queued as " + received.size());
+                } else if (upper.equals("RSET")) {
+                    sender = null;
+                    recipients.clear();
+                    reply(out, in, "250 OK");
+                } else if (upper.equals("NOOP")) {
+                    reply(out, in, "250 OK");
+                } else if (upper.equals("QUIT")) {
+                    reply(out, in, "221 Bye");
+                    out.flush();
+                    return;
+                } else {
+                    reply(out, in, "502 Command not implemented");
+                }
+            }
+        } catch (IOException e) {
+            // Client went away
+        }
+    }
+
+    // Send a reply, holding it back while more pipelined commands are already waiting
+    private static void reply(OutputStream out, InputStream in, String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+        out.write('\r');
+        out.write('\n');
+        if (in.available() == 0) {
+            out.flush();
+        }
+    }
+
+    private static String address(String arg) {
+        String a = arg.trim();
+        int open = a.indexOf('<');
+        int close = a.indexOf('>');
+        return open >= 0 && close > open ? a.substring(open + 1, close) : a;
+    }
+
+    private static String readData(InputStream in) throws IOException {
+        StringBuilder content = new StringBuilder();
+        String line;
+        while ((line = readLine(in)) != null) {
+            if (line.equals(".")) {
+                return content.toString();
+            }
+            content.append(line.startsWith(".") ? line.substring(1) : line).append('\n');
+        }
+        return null;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return null;
+            }
+            line.write(b);
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        SmtpStandIn server = new SmtpStandIn(args.length > 0 ? Integer.parseInt(args[0]) : 2525);
+        server.verbose = true;
+        server.start();
+        System.out.println("SMTP stand-in listening on port " + server.getPort());
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,296 @@
+package utils;
+
+import models.Appointment;
+import models.Patient;
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Bulk import of an external CSV file in the layout of one of our data files
+ * The file is parsed and validated in parallel chunks, then checked for IDs that
+ * are already stored or appear twice in the file. Duplicates are found with a
+ * Bloom filter first, so only the few IDs it flags are tracked exactly. Rows
+ * with a blank ID get one from a single block reserved in the ID sequence.
+ * Bad rows are rejected with a reason instead of being dropped silently.
+ */
+public class BulkImporter<T> {
+    // Rejected rows reported individually, the rest are only counted
+    private static final int MAX_ERRORS = 1000;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm");
+
+    /**
+     * Turns one row into an entity with a possibly blank ID
+     * Throws IllegalArgumentException with the reason when the row is invalid.
+     */
+    public interface RowParser<T> {
+        T parse(MappedCSVReader.Row row);
+    }
+
+    private final int fields;
+    private final RowParser<T> parser;
+    private final Function<T, String> idOf;
+    private final BiConsumer<T, String> setId;
+    private final IdSequence ids;
+
+    public BulkImporter(int fields, RowParser<T> parser, Function<T, String> idOf,
+                        BiConsumer<T, String> setId, IdSequence ids) {
+        this.fields = fields;
+        this.parser = parser;
+        this.idOf = idOf;
+        this.setId = setId;
+        this.ids = ids;
+    }
+
+    // Rows of patients.csv: ID, name, age, gender, contact number, address, medical history
+    public static BulkImporter<Patient> patients(IdSequence ids) {
+        return new BulkImporter<>(7, row -> {
+            String name = required(row, 1, "name");
+            int age;
+            try {
+                age = row.getInt(2);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Age is not a number: " + row.get(2));
+            }
+            if (age < 0 || age > 150) {
+                throw new IllegalArgumentException("Age out of range: " + age);
+            }
+            return new Patient(row.get(0), name, age, row.get(3), required(row, 4, "contact number"),
+                               row.get(5), row.get(6));
+        }, Patient::getPatientID, Patient::setPatientID, ids);
+    }
+
+    // Rows of appointments.csv: ID, patient ID, clinician ID, date (yyyy-MM-dd), time (HH:mm), status
+    public static BulkImporter<Appointment> appointments(IdSequence ids, Predicate<String> patientExists,
+                                                         Predicate<String> clinicianExists) {
+        return new BulkImporter<>(6, row -> {
+            String patientID = required(row, 1, "patient ID");
+            if (!patientExists.test(patientID)) {
+                throw new IllegalArgumentException("Unknown patient " + patientID);
+            }
+            String clinicianID = required(row, 2, "clinician ID");
+            if (!clinicianExists.test(clinicianID)) {
+                throw new IllegalArgumentException("Unknown clinician " + clinicianID);
+            }
+            String date = row.get(3);
+            String time = row.get(4);
+            try {
+                LocalDate.parse(date);
+                LocalTime.parse(time, TIME_FORMAT);
+            } catch (DateTimeException e) {
+                throw new IllegalArgumentException("Bad date or time: " + date + " " + time);
+            }
+            return new Appointment(row.get(0), patientID, clinicianID, date, time, required(row, 5, "status"));
+        }, Appointment::getAppointmentID, Appointment::setAppointmentID, ids);
+    }
+
+    private static String required(MappedCSVReader.Row row, int field, String name) {
+        if (row.length(field) == 0) {
+            throw new IllegalArgumentException("Missing " + name);
+        }
+        return row.get(field);
+    }
+
+    /**
+     * Parse, validate and assign IDs to every row of a file; nothing is stored
+     * @param exists whether an ID is already taken in the data
+     */
+    public Result<T> importFile(String path, Predicate<String> exists) {
+        return importFile(path, exists, null);
+    }
+
+    /**
+     * Import a file into a store
+     * The rows are added with addAllNew(), which checks their IDs again under the
+     * store's write lock, so a row stored meanwhile is rejected, never replaced.
+     */
+    public Result<T> importInto(String path, EntityStore<T> store) {
+        return importFile(path, store::contains, store);
+    }
+
+    private Result<T> importFile(String path, Predicate<String> exists, EntityStore<T> store) {
+        long start = System.nanoTime();
+        List<Candidate<T>> candidates;
+        try {
+            candidates = MappedCSVReader.readParallel(path, 0, this::candidate, ForkJoinPool.commonPool());
+        } catch (IOException e) {
+            System.err.println("Error importing " + path + ": " + e.getMessage());
+            return new Result<>(new ArrayList<>(), 0, 0,
+                    Collections.singletonList("Cannot read " + path + ": " + e.getMessage()),
+                    elapsedMillis(start));
+        }
+
+        // Reject rows whose ID is stored already, and flag IDs the Bloom filter may have seen in the file
+        Rejections rejections = new Rejections();
+        BloomFilter seen = new BloomFilter(candidates.size(), 0.01);
+        Set<String> suspects = new HashSet<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            Candidate<T> c = candidates.get(i);
+            if (c.item == null) {
+                rejections.add(i, c.error, c.text);
+                continue;
+            }
+            String id = idOf.apply(c.item);
+            if (id.isEmpty()) {
+                continue;
+            }
+            if (exists.test(id)) {
+                rejections.add(i, "ID " + id + " already exists", c.text);
+                c.item = null;
+            } else if (seen.put(id)) {
+                suspects.add(id);
+            }
+        }
+
+        // Exact pass over the flagged IDs only: the first row with an ID wins
+        Map<String, Integer> firstRow = new HashMap<>();
+        List<Integer> kept = new ArrayList<>(candidates.size() - rejections.count);
+        int blankIds = 0;
+        for (int i = 0; i < candidates.size(); i++) {
+            Candidate<T> c = candidates.get(i);
+            if (c.item == null) {
+                continue;
+            }
+            String id = idOf.apply(c.item);
+            if (!id.isEmpty() && suspects.contains(id)) {
+                Integer first = firstRow.putIfAbsent(id, i);
+                if (first != null) {
+                    rejections.add(i, "Duplicate ID " + id + " (first in row " + (first + 1) + ")", c.text);
+                    continue;
+                }
+            }
+            if (id.isEmpty()) {
+                blankIds++;
+            } else {
+                // Before the reservation below, so no new ID can be one the file uses later on
+                ids.observe(id);
+            }
+            kept.add(i);
+        }
+
+        // One reservation for all new IDs, handed out in file order
+        long next = blankIds > 0 ? ids.nextBlock(blankIds) : 0;
+        Set<String> importedIds = new HashSet<>(Math.max(16, (int) (kept.size() / 0.75f) + 1));
+        List<T> imported = new ArrayList<>(kept.size());
+        List<Integer> importedRows = new ArrayList<>(kept.size());
+        for (int i : kept) {
+            Candidate<T> c = candidates.get(i);
+            if (idOf.apply(c.item).isEmpty()) {
+                setId.accept(c.item, ids.format(next++));
+            }
+            // Last line of defence: a repeated ID would make the store silently drop a row
+            String id = idOf.apply(c.item);
+            if (!importedIds.add(id) || exists.test(id)) {
+                rejections.add(i, "ID " + id + " is already taken", c.text);
+                continue;
+            }
+            imported.add(c.item);
+            importedRows.add(i);
+        }
+        if (store != null && !imported.isEmpty()) {
+            Set<T> taken = Collections.newSetFromMap(new IdentityHashMap<>());
+            taken.addAll(store.addAllNew(imported));
+            if (!taken.isEmpty()) {
+                List<T> stored = new ArrayList<>(imported.size() - taken.size());
+                for (int k = 0; k < imported.size(); k++) {
+                    T item = imported.get(k);
+                    if (taken.contains(item)) {
+                        int i = importedRows.get(k);
+                        rejections.add(i, "ID " + idOf.apply(item) + " was stored while the file was imported",
+                                       candidates.get(i).text);
+                    } else {
+                        stored.add(item);
+                    }
+                }
+                imported = stored;
+            }
+        }
+        return new Result<>(imported, rejections.count, candidates.size(), rejections.messages, elapsedMillis(start));
+    }
+
+    // Called on the parsing threads
+    private Candidate<T> candidate(MappedCSVReader.Row row) {
+        Candidate<T> c = new Candidate<>();
+        if (row.size() != fields) {
+            c.error = "Expected " + fields + " fields, found " + row.size();
+        } else {
+            try {
+                c.item = parser.parse(row);
+                return c;
+            } catch (IllegalArgumentException e) {
+                c.error = e.getMessage();
+            }
+        }
+        // Keep the raw text of bad rows for the report
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < row.size(); i++) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(row.get(i));
+        }
+        c.text = text.toString();
+        return c;
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    private static class Candidate<T> {
+        T item;       // null once rejected
+        String error;
+        String text;
+    }
+
+    private static class Rejections {
+        final List<String> messages = new ArrayList<>();
+        int count;
+
+        void add(int index, String reason, String text) {
+            count++;
+            if (messages.size() < MAX_ERRORS) {
+                messages.add("Row " + (index + 1) + ": " + reason + (text != null ? " [" + text + "]" : ""));
+            }
+        }
+    }
+
+    /**
+     * Outcome of an import; rows are numbered from 1 after the header, blank lines not counted
+     */
+    public static class Result<T> {
+        public final List<T> imported;
+        public final int rejected;
+        public final int rows;
+        public final List<String> errors; // the first MAX_ERRORS rejections
+        public final long elapsedMillis;
+
+        Result(List<T> imported, int rejected, int rows, List<String> errors, long elapsedMillis) {
+            this.imported = imported;
+            this.rejected = rejected;
+            this.rows = rows;
+            this.errors = Collections.unmodifiableList(errors);
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Imported " + imported.size() + " of " + rows + " rows, rejected " + rejected +
+                   " (" + elapsedMillis + " ms)";
+        }
+    }
+}
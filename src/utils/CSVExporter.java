@@ -0,0 +1,200 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Streaming CSV extract writer
+ * Rows are pulled one at a time from a cursor, encoded straight into a fixed
+ * byte buffer and written to a FileChannel whenever it fills, so memory use does
+ * not depend on the size of the extract. With gzip the buffer is deflated into
+ * a second buffer instead, producing a standard .gz file. The extract is written
+ * to a temp file and moved into place, so readers never see half of one.
+ */
+public class CSVExporter {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private CSVExporter() {
+    }
+
+    /**
+     * Write the header and every row the filter accepts
+     * @param filter null to export every row
+     */
+    public static <T> Stats export(String filepath, String header, Iterator<T> rows, Function<T, String> toCSV,
+                                   Predicate<T> filter, boolean gzip) throws IOException {
+        long start = System.nanoTime();
+        Path target = Paths.get(filepath);
+        Path temp = Paths.get(filepath + ".tmp");
+        long count = 0;
+        long rawBytes;
+        long fileBytes;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            Sink sink = gzip ? new GzipSink(channel) : new Sink(channel);
+            CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            encode(header, encoder, buffer, sink);
+            while (rows.hasNext()) {
+                T row = rows.next();
+                if (filter == null || filter.test(row)) {
+                    encode(toCSV.apply(row), encoder, buffer, sink);
+                    count++;
+                }
+            }
+            sink.write(buffer);
+            sink.finish();
+            rawBytes = sink.rawBytes;
+            fileBytes = channel.position();
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return new Stats(count, rawBytes, fileBytes, System.nanoTime() - start);
+    }
+
+    // Append one line, handing the buffer to the sink each time it fills
+    private static void encode(String line, CharsetEncoder encoder, ByteBuffer buffer, Sink sink) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(line);
+        encoder.reset();
+        while (encoder.encode(chars, buffer, true) == CoderResult.OVERFLOW) {
+            sink.write(buffer);
+        }
+        if (!buffer.hasRemaining()) {
+            sink.write(buffer);
+        }
+        buffer.put((byte) '\n');
+    }
+
+    /**
+     * Writes filled buffers to the channel unchanged
+     */
+    private static class Sink {
+        final FileChannel channel;
+        long rawBytes;
+
+        Sink(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        // Consume the buffer's contents and clear it for refilling
+        void write(ByteBuffer buffer) throws IOException {
+            buffer.flip();
+            rawBytes += buffer.remaining();
+            consume(buffer);
+            buffer.clear();
+        }
+
+        void consume(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+
+        void finish() throws IOException {
+        }
+    }
+
+    /**
+     * Deflates buffers into gzip format: header, raw deflate stream, then CRC-32 and length
+     */
+    private static class GzipSink extends Sink {
+        // Fastest level: about four times the speed of the default for a quarter more output
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        private final CRC32 crc = new CRC32();
+        private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        GzipSink(FileChannel channel) {
+            super(channel);
+            out.put(GZIP_HEADER);
+        }
+
+        @Override
+        void consume(ByteBuffer data) throws IOException {
+            crc.update(data.duplicate());
+            deflater.setInput(data.slice()); // its own view, the caller clears and refills data
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+        }
+
+        @Override
+        void finish() throws IOException {
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate();
+                }
+                if (out.remaining() < 8) {
+                    drain();
+                }
+                out.order(ByteOrder.LITTLE_ENDIAN);
+                out.putInt((int) crc.getValue());
+                out.putInt((int) rawBytes);
+                drain();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private void deflate() throws IOException {
+            deflater.deflate(out);
+            if (!out.hasRemaining()) {
+                drain();
+            }
+        }
+
+        private void drain() throws IOException {
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            out.clear();
+        }
+    }
+
+    /**
+     * Size and speed of one export; bytesPerSecond is measured on the uncompressed CSV
+     */
+    public static class Stats {
+        public final long rows;
+        public final long rawBytes;
+        public final long fileBytes;
+        public final long elapsedMillis;
+        public final long bytesPerSecond;
+
+        Stats(long rows, long rawBytes, long fileBytes, long elapsedNanos) {
+            this.rows = rows;
+            this.rawBytes = rawBytes;
+            this.fileBytes = fileBytes;
+            this.elapsedMillis = elapsedNanos / 1_000_000;
+            this.bytesPerSecond = elapsedNanos == 0 ? 0 : (long) (rawBytes * 1e9 / elapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            return "Export{rows=" + rows + ", csv=" + rawBytes + "B, file=" + fileBytes + "B, " +
+                   elapsedMillis + "ms, " + (bytesPerSecond >> 20) + " MB/s}";
+        }
+    }
+}
@@ -2,32 +2,32 @@ package utils;
 
 import models.*;
 import java.io.*;
+import java.nio.file.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 /**
  * Utility class to handle CSV file operations
  * Reads and writes data to CSV files
  */
 public class CSVHandler {
-    
+
+    // CSV headers
+    public static final String PATIENTS_HEADER = "PatientID,Name,Age,Gender,ContactNumber,Address,MedicalHistory";
+    public static final String CLINICIANS_HEADER = "ClinicianID,Name,Specialization,ContactNumber,Email";
+    public static final String APPOINTMENTS_HEADER = "AppointmentID,PatientID,ClinicianID,Date,Time,Status";
+    public static final String PRESCRIPTIONS_HEADER = "PrescriptionID,PatientID,ClinicianID,Medication,Dosage,Date";
+
     // Load Patients from CSV
     public static List<Patient> loadPatients(String filepath) {
         List<Patient> patients = new ArrayList<>();
         try (BufferedReader br = new BufferedReader(new FileReader(filepath))) {
             String line = br.readLine(); // Skip header
             while ((line = br.readLine()) != null) {
-                String[] data = line.split(",");
-                if (data.length >= 7) {
-                    Patient patient = new Patient(
-                        data[0].trim(), // PatientID
-                        data[1].trim(), // Name
-                        Integer.parseInt(data[2].trim()), // Age
-                        data[3].trim(), // Gender
-                        data[4].trim(), // ContactNumber
-                        data[5].trim(), // Address
-                        data[6].trim()  // MedicalHistory
-                    );
+                Patient patient = parsePatient(line);
+                if (patient != null) {
                     patients.add(patient);
                 }
             }
@@ -36,34 +36,47 @@ public class CSVHandler {
         }
         return patients;
     }
-    
-    // Save Patients to CSV
-    public static void savePatients(String filepath, List<Patient> patients) {
-        try (FileWriter writer = new FileWriter(filepath)) {
-            writer.write("PatientID,Name,Age,Gender,ContactNumber,Address,MedicalHistory\n");
-            for (Patient p : patients) {
-                writer.write(p.toCSV() + "\n");
-            }
+
+    // Parse one patient row, returns null if the row is malformed
+    public static Patient parsePatient(String line) {
+        String[] data = line.split(",");
+        if (data.length < 7) {
+            return null;
+        }
+        try {
+            return new Patient(
+                data[0].trim(), // PatientID
+                data[1].trim(), // Name
+                Integer.parseInt(data[2].trim()), // Age
+                data[3].trim(), // Gender
+                data[4].trim(), // ContactNumber
+                data[5].trim(), // Address
+                data[6].trim()  // MedicalHistory
+            );
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Save Patients to CSV, returns false if the file could not be written
+    public static boolean savePatients(String filepath, List<Patient> patients) {
+        try {
+            writeAll(filepath, PATIENTS_HEADER, patients, Patient::toCSV);
+            return true;
         } catch (IOException e) {
             System.err.println("Error saving patients: " + e.getMessage());
+            return false;
         }
     }
-    
+
     // Load Clinicians from CSV
     public static List<Clinician> loadClinicians(String filepath) {
         List<Clinician> clinicians = new ArrayList<>();
         try (BufferedReader br = new BufferedReader(new FileReader(filepath))) {
             String line = br.readLine(); // Skip header
             while ((line = br.readLine()) != null) {
-                String[] data = line.split(",");
-                if (data.length >= 5) {
-                    Clinician clinician = new Clinician(
-                        data[0].trim(),
-                        data[1].trim(),
-                        data[2].trim(),
-                        data[3].trim(),
-                        data[4].trim()
-                    );
+                Clinician clinician = parseClinician(line);
+                if (clinician != null) {
                     clinicians.add(clinician);
                 }
             }
@@ -72,35 +85,41 @@ public class CSVHandler {
         }
         return clinicians;
     }
-    
-    // Save Clinicians to CSV
-    public static void saveClinicians(String filepath, List<Clinician> clinicians) {
-        try (FileWriter writer = new FileWriter(filepath)) {
-            writer.write("ClinicianID,Name,Specialization,ContactNumber,Email\n");
-            for (Clinician c : clinicians) {
-                writer.write(c.toCSV() + "\n");
-            }
+
+    // Parse one clinician row, returns null if the row is malformed
+    public static Clinician parseClinician(String line) {
+        String[] data = line.split(",");
+        if (data.length < 5) {
+            return null;
+        }
+        return new Clinician(
+            data[0].trim(),
+            data[1].trim(),
+            data[2].trim(),
+            data[3].trim(),
+            data[4].trim()
+        );
+    }
+
+    // Save Clinicians to CSV, returns false if the file could not be written
+    public static boolean saveClinicians(String filepath, List<Clinician> clinicians) {
+        try {
+            writeAll(filepath, CLINICIANS_HEADER, clinicians, Clinician::toCSV);
+            return true;
         } catch (IOException e) {
             System.err.println("Error saving clinicians: " + e.getMessage());
+            return false;
         }
     }
-    
+
     // Load Appointments from CSV
     public static List<Appointment> loadAppointments(String filepath) {
         List<Appointment> appointments = new ArrayList<>();
         try (BufferedReader br = new BufferedReader(new FileReader(filepath))) {
             String line = br.readLine(); // Skip header
             while ((line = br.readLine()) != null) {
-                String[] data = line.split(",");
-                if (data.length >= 6) {
-                    Appointment appointment = new Appointment(
-                        data[0].trim(),
-                        data[1].trim(),
-                        data[2].trim(),
-                        data[3].trim(),
-                        data[4].trim(),
-                        data[5].trim()
-                    );
+                Appointment appointment = parseAppointment(line);
+                if (appointment != null) {
                     appointments.add(appointment);
                 }
             }
@@ -109,35 +128,42 @@ public class CSVHandler {
         }
         return appointments;
     }
-    
-    // Save Appointments to CSV
-    public static void saveAppointments(String filepath, List<Appointment> appointments) {
-        try (FileWriter writer = new FileWriter(filepath)) {
-            writer.write("AppointmentID,PatientID,ClinicianID,Date,Time,Status\n");
-            for (Appointment a : appointments) {
-                writer.write(a.toCSV() + "\n");
-            }
+
+    // Parse one appointment row, returns null if the row is malformed
+    public static Appointment parseAppointment(String line) {
+        String[] data = line.split(",");
+        if (data.length < 6) {
+            return null;
+        }
+        return new Appointment(
+            data[0].trim(),
+            data[1].trim(),
+            data[2].trim(),
+            data[3].trim(),
+            data[4].trim(),
+            data[5].trim()
+        );
+    }
+
+    // Save Appointments to CSV, returns false if the file could not be written
+    public static boolean saveAppointments(String filepath, List<Appointment> appointments) {
+        try {
+            writeAll(filepath, APPOINTMENTS_HEADER, appointments, Appointment::toCSV);
+            return true;
         } catch (IOException e) {
             System.err.println("Error saving appointments: " + e.getMessage());
+            return false;
         }
     }
-    
+
     // Load Prescriptions from CSV
     public static List<Prescription> loadPrescriptions(String filepath) {
         List<Prescription> prescriptions = new ArrayList<>();
         try (BufferedReader br = new BufferedReader(new FileReader(filepath))) {
             String line = br.readLine(); // Skip header
             while ((line = br.readLine()) != null) {
-                String[] data = line.split(",");
-                if (data.length >= 6) {
-                    Prescription prescription = new Prescription(
-                        data[0].trim(),
-                        data[1].trim(),
-                        data[2].trim(),
-                        data[3].trim(),
-                        data[4].trim(),
-                        data[5].trim()
-                    );
+                Prescription prescription = parsePrescription(line);
+                if (prescription != null) {
                     prescriptions.add(prescription);
                 }
             }
@@ -146,16 +172,194 @@ public class CSVHandler {
         }
         return prescriptions;
     }
-    
-    // Save Prescriptions to CSV
-    public static void savePrescriptions(String filepath, List<Prescription> prescriptions) {
-        try (FileWriter writer = new FileWriter(filepath)) {
-            writer.write("PrescriptionID,PatientID,ClinicianID,Medication,Dosage,Date\n");
-            for (Prescription p : prescriptions) {
-                writer.write(p.toCSV() + "\n");
-            }
+
+    // Parse one prescription row, returns null if the row is malformed
+    public static Prescription parsePrescription(String line) {
+        String[] data = line.split(",");
+        if (data.length < 6) {
+            return null;
+        }
+        return new Prescription(
+            data[0].trim(),
+            data[1].trim(),
+            data[2].trim(),
+            data[3].trim(),
+            data[4].trim(),
+            data[5].trim()
+        );
+    }
+
+    // Save Prescriptions to CSV, returns false if the file could not be written
+    public static boolean savePrescriptions(String filepath, List<Prescription> prescriptions) {
+        try {
+            writeAll(filepath, PRESCRIPTIONS_HEADER, prescriptions, Prescription::toCSV);
+            return true;
         } catch (IOException e) {
             System.err.println("Error saving prescriptions: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // ========== MEMORY-MAPPED LOADERS ==========
+    
+    // Load Patients through the memory-mapped tokenizer
+    public static List<Patient> loadPatientsMapped(String filepath) {
+        try {
+            return MappedCSVReader.read(filepath, 7, internedPatientMapper());
+        } catch (IOException e) {
+            System.err.println("Error loading patients: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+    
+    // Load Clinicians through the memory-mapped tokenizer
+    public static List<Clinician> loadCliniciansMapped(String filepath) {
+        try {
+            return MappedCSVReader.read(filepath, 5, internedClinicianMapper());
+        } catch (IOException e) {
+            System.err.println("Error loading clinicians: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+    
+    // Load Appointments through the memory-mapped tokenizer
+    public static List<Appointment> loadAppointmentsMapped(String filepath) {
+        try {
+            return MappedCSVReader.read(filepath, 6, internedAppointmentMapper());
+        } catch (IOException e) {
+            System.err.println("Error loading appointments: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+    
+    // Load Prescriptions through the memory-mapped tokenizer
+    public static List<Prescription> loadPrescriptionsMapped(String filepath) {
+        try {
+            return MappedCSVReader.read(filepath, 6, internedPrescriptionMapper());
+        } catch (IOException e) {
+            System.err.println("Error loading prescriptions: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+    
+    // ========== STREAMING CURSORS ==========
+    // Rows are parsed as the stream is consumed, so memory stays bounded by one read buffer.
+    // Close the returned stream (try-with-resources) to release the file.
+    
+    public static Stream<Patient> streamPatients(String filepath, boolean parallel) {
+        return stream(filepath, 7, CSVHandler::mapPatient, parallel, "patients");
+    }
+    
+    public static Stream<Clinician> streamClinicians(String filepath, boolean parallel) {
+        return stream(filepath, 5, CSVHandler::mapClinician, parallel, "clinicians");
+    }
+    
+    public static Stream<Appointment> streamAppointments(String filepath, boolean parallel) {
+        return stream(filepath, 6, CSVHandler::mapAppointment, parallel, "appointments");
+    }
+    
+    public static Stream<Prescription> streamPrescriptions(String filepath, boolean parallel) {
+        return stream(filepath, 6, CSVHandler::mapPrescription, parallel, "prescriptions");
+    }
+    
+    private static <T> Stream<T> stream(String filepath, int minFields, MappedCSVReader.RowMapper<T> mapper,
+                                        boolean parallel, String what) {
+        try {
+            return CSVSpliterator.stream(filepath, minFields, mapper, parallel);
+        } catch (IOException e) {
+            System.err.println("Error loading " + what + ": " + e.getMessage());
+            return Stream.empty();
+        }
+    }
+    
+    // Mappers used by the loaders: repeated values (foreign keys, dates, statuses, ...) are
+    // interned through per-column dictionaries, so rows share one String per distinct value.
+    // Each load gets fresh dictionaries, which are dropped once the load finishes.
+    
+    static MappedCSVReader.RowMapper<Patient> internedPatientMapper() {
+        StringDictionary genders = new StringDictionary();
+        StringDictionary addresses = new StringDictionary();
+        StringDictionary histories = new StringDictionary();
+        return row -> {
+            try {
+                int age = row.getInt(2);
+                return new Patient(row.get(0), row.get(1), age, row.intern(3, genders),
+                                   row.get(4), row.intern(5, addresses), row.intern(6, histories));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        };
+    }
+    
+    static MappedCSVReader.RowMapper<Clinician> internedClinicianMapper() {
+        StringDictionary specializations = new StringDictionary();
+        return row -> new Clinician(row.get(0), row.get(1), row.intern(2, specializations),
+                                    row.get(3), row.get(4));
+    }
+    
+    static MappedCSVReader.RowMapper<Appointment> internedAppointmentMapper() {
+        StringDictionary patientIDs = new StringDictionary();
+        StringDictionary clinicianIDs = new StringDictionary();
+        StringDictionary dates = new StringDictionary();
+        StringDictionary times = new StringDictionary();
+        StringDictionary statuses = new StringDictionary();
+        return row -> new Appointment(row.get(0), row.intern(1, patientIDs), row.intern(2, clinicianIDs),
+                                      row.intern(3, dates), row.intern(4, times), row.intern(5, statuses));
+    }
+    
+    static MappedCSVReader.RowMapper<Prescription> internedPrescriptionMapper() {
+        StringDictionary patientIDs = new StringDictionary();
+        StringDictionary clinicianIDs = new StringDictionary();
+        StringDictionary medications = new StringDictionary();
+        StringDictionary dosages = new StringDictionary();
+        StringDictionary dates = new StringDictionary();
+        return row -> new Prescription(row.get(0), row.intern(1, patientIDs), row.intern(2, clinicianIDs),
+                                       row.intern(3, medications), row.intern(4, dosages), row.intern(5, dates));
+    }
+    
+    // Plain mappers, used by the streaming cursors where a dictionary would grow with the file
+    
+    static Patient mapPatient(MappedCSVReader.Row row) {
+        try {
+            int age = row.getInt(2);
+            return new Patient(row.get(0), row.get(1), age, row.get(3),
+                               row.get(4), row.get(5), row.get(6));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+    
+    static Clinician mapClinician(MappedCSVReader.Row row) {
+        return new Clinician(row.get(0), row.get(1), row.get(2), row.get(3), row.get(4));
+    }
+    
+    static Appointment mapAppointment(MappedCSVReader.Row row) {
+        return new Appointment(row.get(0), row.get(1), row.get(2),
+                               row.get(3), row.get(4), row.get(5));
+    }
+    
+    static Prescription mapPrescription(MappedCSVReader.Row row) {
+        return new Prescription(row.get(0), row.get(1), row.get(2),
+                                row.get(3), row.get(4), row.get(5));
+    }
+
+    // Write to a temp file and move it over the target, so a crash never leaves a half-written CSV
+    private static <T> void writeAll(String filepath, String header, List<T> rows,
+                                     Function<T, String> toCSV) throws IOException {
+        Path target = Paths.get(filepath);
+        Path temp = Paths.get(filepath + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp)) {
+            writer.write(header);
+            writer.write('\n');
+            for (T row : rows) {
+                writer.write(toCSV.apply(row));
+                writer.write('\n');
+            }
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,179 @@
+package utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Streaming cursor over the rows of a CSV file
+ * Reads the file through one fixed-size buffer, so memory stays bounded however
+ * large the file is. trySplit() hands the second half of the unread byte range
+ * (aligned on a line start) to a new spliterator, so parallel streams work too.
+ */
+public class CSVSpliterator<T> implements Spliterator<T> {
+    private static final int BUFFER_SIZE = 1 << 16;
+    // Ranges smaller than this are not split further
+    private static final long MIN_SPLIT_SIZE = 1L << 20;
+    // Rough bytes per row, only used for size estimates
+    private static final int BYTES_PER_ROW_ESTIMATE = 64;
+
+    private final FileChannel channel;
+    private final int minFields;
+    private final MappedCSVReader.RowMapper<T> mapper;
+    private final MappedCSVReader.Row row = new MappedCSVReader.Row();
+    private byte[] buffer;
+    private int bufferPos;   // next unparsed byte in the buffer
+    private int bufferLimit; // bytes of the buffer holding data
+    private long pos;        // next file offset not yet read into the buffer
+    private long end;        // end of this spliterator's range
+
+    CSVSpliterator(FileChannel channel, long start, long end, int minFields, MappedCSVReader.RowMapper<T> mapper) {
+        this.channel = channel;
+        this.pos = start;
+        this.end = end;
+        this.minFields = minFields;
+        this.mapper = mapper;
+    }
+
+    // Stream the data rows of a file, the stream must be closed to release the file
+    public static <T> Stream<T> stream(String filepath, int minFields, MappedCSVReader.RowMapper<T> mapper,
+                                       boolean parallel) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(filepath), StandardOpenOption.READ);
+        try {
+            long start = MappedCSVReader.skipHeader(channel);
+            CSVSpliterator<T> spliterator = new CSVSpliterator<>(channel, start, channel.size(), minFields, mapper);
+            return StreamSupport.stream(spliterator, parallel).onClose(() -> {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing " + filepath + ": " + e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        while (true) {
+            int newline = indexOfNewline();
+            if (newline < 0) {
+                if (pos < end) {
+                    fill();
+                    continue;
+                }
+                if (bufferPos == bufferLimit) {
+                    return false;
+                }
+                newline = bufferLimit; // final line without a trailing newline
+            }
+            T item = parseLine(bufferPos, newline);
+            bufferPos = Math.min(newline + 1, bufferLimit);
+            if (item != null) {
+                action.accept(item);
+                return true;
+            }
+        }
+    }
+
+    private int indexOfNewline() {
+        for (int i = bufferPos; i < bufferLimit; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private T parseLine(int from, int to) {
+        row.reset(buffer);
+        int fieldStart = from;
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == ',') {
+                row.addField(fieldStart, i);
+                fieldStart = i + 1;
+            }
+        }
+        row.addField(fieldStart, to);
+        if (row.size() < minFields || row.isBlank()) {
+            return null;
+        }
+        return mapper.map(row);
+    }
+
+    // Move the unparsed tail to the front of the buffer and read more of the range after it
+    private void fill() {
+        if (buffer == null) {
+            buffer = new byte[BUFFER_SIZE];
+        }
+        int remaining = bufferLimit - bufferPos;
+        System.arraycopy(buffer, bufferPos, buffer, 0, remaining);
+        bufferPos = 0;
+        bufferLimit = remaining;
+        if (bufferLimit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2); // line longer than the buffer
+        }
+        int wanted = (int) Math.min(buffer.length - bufferLimit, end - pos);
+        ByteBuffer target = ByteBuffer.wrap(buffer, bufferLimit, wanted);
+        try {
+            while (target.hasRemaining()) {
+                int read = channel.read(target, pos + target.position() - bufferLimit);
+                if (read < 0) {
+                    end = pos + target.position() - bufferLimit; // file shrank under us
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int read = target.position() - bufferLimit;
+        bufferLimit += read;
+        pos += read;
+    }
+
+    // Ordered spliterators must hand out the prefix: the new spliterator takes the buffered
+    // bytes and the unread range up to the middle, this one keeps the rest
+    @Override
+    public Spliterator<T> trySplit() {
+        if (end - pos < MIN_SPLIT_SIZE) {
+            return null;
+        }
+        try {
+            long mid = MappedCSVReader.lineStartAtOrAfter(channel, pos + (end - pos) / 2);
+            if (mid <= pos || mid >= end) {
+                return null;
+            }
+            CSVSpliterator<T> head = new CSVSpliterator<>(channel, pos, mid, minFields, mapper);
+            head.buffer = buffer;
+            head.bufferPos = bufferPos;
+            head.bufferLimit = bufferLimit;
+            buffer = null;
+            bufferPos = 0;
+            bufferLimit = 0;
+            pos = mid;
+            return head;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public long estimateSize() {
+        return (end - pos + bufferLimit - bufferPos) / BYTES_PER_ROW_ESTIMATE + 1;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL | IMMUTABLE;
+    }
+}
@@ -0,0 +1,252 @@
+package utils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Append-only change journal for one entity CSV file
+ * Each mutation is appended as a single line ("A,<csv>", "U,<csv>" or "D,<id>"),
+ * so the cost of a save is proportional to the change and not to the file.
+ * Once enough entries pile up the journal is compacted in the background:
+ * the full CSV is rewritten and the entries it now contains are dropped.
+ */
+public class ChangeJournal<T> {
+    private static final char ADD = 'A';
+    private static final char UPDATE = 'U';
+    private static final char DELETE = 'D';
+
+    private final Path path;
+    private final Function<String, T> parser;
+    private final Function<T, String> idOf;
+    private final Function<T, String> toCSV;
+    private final Supplier<List<T>> liveData;
+    private final Predicate<List<T>> compactor;
+    private final Executor executor;
+    private final int compactionThreshold;
+
+    private Writer writer;
+    private int entries;
+    private boolean compacting;
+
+    /**
+     * @param path                journal file, e.g. data/patients.csv.journal
+     * @param parser              parses one CSV row, returns null for malformed rows
+     * @param idOf                primary key of an entity
+     * @param toCSV               CSV row of an entity
+     * @param liveData            copy of the current in-memory data, taken when a compaction runs
+     * @param compactor           rewrites the full CSV file from a list, false on failure
+     * @param executor            runs compactions off the caller's thread
+     * @param compactionThreshold number of entries that triggers a compaction
+     */
+    public ChangeJournal(String path, Function<String, T> parser, Function<T, String> idOf,
+                         Function<T, String> toCSV, Supplier<List<T>> liveData,
+                         Predicate<List<T>> compactor, Executor executor, int compactionThreshold) {
+        this.path = Paths.get(path);
+        this.parser = parser;
+        this.idOf = idOf;
+        this.toCSV = toCSV;
+        this.liveData = liveData;
+        this.compactor = compactor;
+        this.executor = executor;
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    // Apply the journal on top of data loaded from the CSV file, returns the number of entries applied
+    public synchronized int replay(List<T> target) {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        Map<String, T> byId = new LinkedHashMap<>();
+        for (T item : target) {
+            byId.put(idOf.apply(item), item);
+        }
+        int applied = 0;
+        try (BufferedReader br = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.length() < 2 || line.charAt(1) != ',') {
+                    continue; // torn or empty line from an interrupted write
+                }
+                String payload = line.substring(2);
+                char op = line.charAt(0);
+                if (op == DELETE) {
+                    byId.remove(payload.trim());
+                } else if (op == ADD || op == UPDATE) {
+                    T item = parser.apply(payload);
+                    if (item == null) {
+                        continue;
+                    }
+                    byId.put(idOf.apply(item), item);
+                } else {
+                    continue;
+                }
+                applied++;
+            }
+        } catch (IOException e) {
+            System.err.println("Error replaying journal " + path + ": " + e.getMessage());
+        }
+        target.clear();
+        target.addAll(byId.values());
+        entries = applied;
+        return applied;
+    }
+
+    public void recordAdd(T item) {
+        append(ADD, toCSV.apply(item));
+    }
+
+    // Journal many adds with a single write and flush
+    public void recordAddAll(List<T> items) {
+        if (items.isEmpty()) {
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (T item : items) {
+            lines.append(ADD).append(',').append(toCSV.apply(item)).append('\n');
+        }
+        appendLines(lines, items.size());
+    }
+
+    public void recordUpdate(T item) {
+        append(UPDATE, toCSV.apply(item));
+    }
+
+    public void recordDelete(String id) {
+        append(DELETE, id);
+    }
+
+    // Number of entries not yet folded into the CSV file
+    public synchronized int size() {
+        return entries;
+    }
+
+    private void append(char op, String payload) {
+        appendLines(op + "," + payload + "\n", 1);
+    }
+
+    // Write whole journal lines, each ending in a newline, and flush once
+    private void appendLines(CharSequence lines, int count) {
+        boolean compact;
+        synchronized (this) {
+            try {
+                if (writer == null) {
+                    writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                }
+                writer.append(lines);
+                writer.flush();
+                entries += count;
+            } catch (IOException e) {
+                System.err.println("Error writing journal " + path + ": " + e.getMessage());
+            }
+            compact = entries >= compactionThreshold && !compacting;
+        }
+        if (compact) {
+            compactAsync();
+        }
+    }
+
+    // Start a background compaction of everything journaled so far
+    public void compactAsync() {
+        Compaction compaction = begin();
+        if (compaction != null) {
+            executor.execute(compaction);
+        }
+    }
+
+    // Compact on the caller's thread, used at shutdown
+    public void compactNow() {
+        Compaction compaction = begin();
+        if (compaction != null) {
+            compaction.run();
+        }
+    }
+
+    // Mark the journal position; the data is copied after it, on the thread that runs the compaction.
+    // Every entry before the mark is already applied to the live data, and replaying an entry after
+    // it that also made it into the copy is harmless, so later entries survive the compaction.
+    private synchronized Compaction begin() {
+        if (compacting || entries == 0) {
+            return null;
+        }
+        try {
+            if (writer != null) {
+                writer.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Error flushing journal " + path + ": " + e.getMessage());
+            return null;
+        }
+        compacting = true;
+        return new Compaction(entries, currentLength());
+    }
+
+    private long currentLength() {
+        try {
+            return Files.exists(path) ? Files.size(path) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    // Drop the first mark bytes of the journal, keeping entries appended after the snapshot
+    private synchronized void truncate(long mark, int folded) {
+        try {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+            byte[] all = Files.exists(path) ? Files.readAllBytes(path) : new byte[0];
+            byte[] tail = new byte[(int) Math.max(0, all.length - mark)];
+            System.arraycopy(all, all.length - tail.length, tail, 0, tail.length);
+            Path temp = Paths.get(path + ".tmp");
+            Files.write(temp, tail);
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            entries = Math.max(0, entries - folded);
+        } catch (IOException e) {
+            System.err.println("Error compacting journal " + path + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing journal " + path + ": " + e.getMessage());
+        }
+    }
+
+    private class Compaction implements Runnable {
+        private final int folded;
+        private final long mark;
+
+        Compaction(int folded, long mark) {
+            this.folded = folded;
+            this.mark = mark;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (compactor.test(liveData.get())) {
+                    truncate(mark, folded);
+                }
+            } finally {
+                synchronized (ChangeJournal.this) {
+                    compacting = false;
+                }
+            }
+        }
+    }
+}
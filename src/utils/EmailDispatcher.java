@@ -0,0 +1,236 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Background writer for outgoing letters
+ * submit() queues an item and returns a future that completes with the item
+ * once its letter is written. The queue is bounded: when the workers fall behind,
+ * submit() blocks until there is room, so a bulk run cannot queue unbounded
+ * work. Each worker takes whatever is queued, up to a batch, and renders and
+ * writes it through one reused buffer. A failed write is retried with a
+ * growing delay before its future fails.
+ */
+public class EmailDispatcher<T> {
+    /**
+     * Where letters go, e.g. an Outbox; the buffer is the worker's own, free to use as scratch space
+     */
+    public interface Sink<T> {
+        void write(T item, ByteBuffer buffer) throws IOException;
+    }
+
+    private static final int BATCH_SIZE = 256;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = 50; // doubled for each further attempt
+
+    private final Sink<T> sink;
+    private final BlockingQueue<Job<T>> queue;
+    private final Thread[] workers;
+    private volatile boolean closed;
+
+    // Metrics
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong firstSubmitNanos = new AtomicLong();
+    private volatile long lastWriteNanos;
+
+    /**
+     * @param sink     renders and stores one letter
+     * @param threads  worker threads
+     * @param capacity items that may wait before submit() blocks
+     */
+    public EmailDispatcher(String name, Sink<T> sink, int threads, int capacity) {
+        this.sink = sink;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.workers = new Thread[Math.max(1, threads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(this::work, name + "-" + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    // Queue an item, waiting for room if the queue is full; the future fails if every attempt to write it does
+    public CompletableFuture<T> submit(T item) {
+        CompletableFuture<T> done = new CompletableFuture<>();
+        if (closed) {
+            done.completeExceptionally(new IllegalStateException("Dispatcher is shut down"));
+            return done;
+        }
+        Job<T> job = new Job<>(item, done);
+        firstSubmitNanos.compareAndSet(0, job.queuedNanos);
+        submitted.increment();
+        try {
+            queue.put(job);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            submitted.decrement();
+            done.completeExceptionally(e);
+        }
+        return done;
+    }
+
+    private void work() {
+        Worker worker = new Worker();
+        List<Job<T>> batch = new ArrayList<>(BATCH_SIZE);
+        try {
+            while (true) {
+                Job<T> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                worker.write(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Stop taking items, write everything already queued and stop the workers
+    public void shutdown() {
+        closed = true;
+        for (Thread worker : workers) {
+            try {
+                worker.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        // Anything that slipped in while the workers were stopping
+        List<Job<T>> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        if (!rest.isEmpty()) {
+            new Worker().write(rest);
+        }
+    }
+
+    public Stats getStats() {
+        long count = written.sum();
+        long waited = count + failed.sum();
+        long first = firstSubmitNanos.get();
+        long span = lastWriteNanos - first;
+        return new Stats(submitted.sum(), count, failed.sum(), retries.sum(), queue.size(), batches.sum(),
+                waited == 0 ? 0 : totalWaitNanos.sum() / waited / 1000, maxWaitNanos.get() / 1000,
+                first == 0 || span <= 0 ? 0 : count * 1e9 / span);
+    }
+
+    /**
+     * Buffer owned by one thread, reused for every letter it writes
+     */
+    private class Worker {
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        void write(List<Job<T>> batch) {
+            batches.increment();
+            long now = System.nanoTime();
+            for (Job<T> job : batch) {
+                long wait = now - job.queuedNanos;
+                totalWaitNanos.add(wait);
+                maxWaitNanos.accumulateAndGet(wait, Math::max);
+            }
+            for (Job<T> job : batch) {
+                writeWithRetry(job);
+            }
+            lastWriteNanos = System.nanoTime();
+        }
+
+        private void writeWithRetry(Job<T> job) {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    sink.write(job.item, buffer);
+                    written.increment();
+                    job.done.complete(job.item);
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    if (attempt == MAX_ATTEMPTS || e instanceof RuntimeException) {
+                        fail(job, e);
+                        return;
+                    }
+                    retries.increment();
+                    try {
+                        Thread.sleep(RETRY_DELAY_MILLIS << (attempt - 1));
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        fail(job, e);
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void fail(Job<T> job, Exception e) {
+            failed.increment();
+            System.err.println("Error writing letter: " + e.getMessage());
+            job.done.completeExceptionally(e);
+        }
+    }
+
+    private static class Job<T> {
+        final T item;
+        final CompletableFuture<T> done;
+        final long queuedNanos = System.nanoTime();
+
+        Job(T item, CompletableFuture<T> done) {
+            this.item = item;
+            this.done = done;
+        }
+    }
+
+    /**
+     * Point-in-time dispatch metrics; waits are from submit() until a worker picks the item up
+     */
+    public static class Stats {
+        public final long submitted;
+        public final long written;
+        public final long failed;
+        public final long retries;
+        public final int queueDepth;
+        public final long batches;
+        public final long averageWaitMicros;
+        public final long maxWaitMicros;
+        public final double perSecond; // letters written per second since the first submit
+
+        Stats(long submitted, long written, long failed, long retries, int queueDepth, long batches,
+              long averageWaitMicros, long maxWaitMicros, double perSecond) {
+            this.submitted = submitted;
+            this.written = written;
+            this.failed = failed;
+            this.retries = retries;
+            this.queueDepth = queueDepth;
+            this.batches = batches;
+            this.averageWaitMicros = averageWaitMicros;
+            this.maxWaitMicros = maxWaitMicros;
+            this.perSecond = perSecond;
+        }
+
+        @Override
+        public String toString() {
+            return "Dispatch{submitted=" + submitted + ", written=" + written + ", failed=" + failed +
+                   ", retries=" + retries + ", queued=" + queueDepth + ", batches=" + batches +
+                   ", avgWait=" + averageWaitMicros + "us, maxWait=" + maxWaitMicros + "us, " +
+                   (long) perSecond + "/s}";
+        }
+    }
+}
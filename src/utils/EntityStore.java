@@ -0,0 +1,433 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * In-memory entity table keyed by primary key, safe for any number of threads
+ * A hash index over the IDs makes find, update and delete O(1), and removing a
+ * row unlinks one entry instead of shifting the rest of an ArrayList. Rows keep
+ * the order they were added in, which is the order they are saved in.
+ * Secondary indexes added with addIndex() are kept up to date on every change.
+ * Readers take snapshot(), an immutable list that is built at most once per
+ * version of the data and then shared, so repeated reads cost nothing. The
+ * first read after a write copies all n rows; writes in between share that
+ * one copy, and every caller (a save, a table refresh, a full listing) walks
+ * all n rows of it anyway, so the copy does not change what a read costs.
+ * Point reads go through find() and the indexes and never build a snapshot.
+ *
+ * Guarded by a StampedLock: reads share the read lock and writers are
+ * exclusive. Only size() and version(), which read a single field, use
+ * optimistic reads that take no lock unless a write overlaps them; a map
+ * lookup could see a bucket mid-rehash, so it never runs unlocked. Listeners see every change in order, under the write lock.
+ */
+public class EntityStore<T> {
+    /**
+     * Told about each change while the write lock is held, in the order the changes happen
+     * old is null for an insert, item is null for a delete. Must not call back into the store.
+     */
+    public interface Listener<T> {
+        void changed(T old, T item);
+
+        // New rows added together by addAll(), none of which replaced a row
+        default void addedAll(List<T> items) {
+            for (T item : items) {
+                changed(null, item);
+            }
+        }
+    }
+
+    private final Map<String, T> rows;
+    private final Function<T, String> idOf;
+    private final StampedLock lock = new StampedLock();
+    private final List<Index<?>> indexes = new ArrayList<>();
+    private final List<Listener<T>> listeners = new CopyOnWriteArrayList<>();
+    private volatile List<T> snapshot; // rows at the current version, null until asked for
+    private long version;
+
+    public EntityStore(List<T> items, Function<T, String> idOf) {
+        this.rows = new LinkedHashMap<>(Math.max(16, (int) (items.size() / 0.75f) + 1));
+        this.idOf = idOf;
+        for (T item : items) {
+            rows.put(idOf.apply(item), item);
+        }
+    }
+
+    /**
+     * Index the rows by a non-unique key
+     * @param sorted true for a navigable index that also answers range()
+     */
+    public <K extends Comparable<K>> Index<K> addIndex(Function<T, K> keyOf, boolean sorted) {
+        long stamp = lock.writeLock();
+        try {
+            Index<K> index = new Index<>(keyOf, sorted);
+            for (T item : rows.values()) {
+                index.insert(item);
+            }
+            indexes.add(index);
+            return index;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void addListener(Listener<T> listener) {
+        listeners.add(listener);
+    }
+
+    // ========== WRITES ==========
+
+    // Add a row, replacing any row with the same ID; returns the replaced row or null
+    public T add(T item) {
+        long stamp = lock.writeLock();
+        try {
+            T old = rows.put(idOf.apply(item), item);
+            changed(old, item);
+            return old;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Add a row unless the test rejects it; the test runs under the write lock, so nothing changes between it and the add
+    public boolean addIf(T item, Predicate<T> test) {
+        long stamp = lock.writeLock();
+        try {
+            if (!test.test(item)) {
+                return false;
+            }
+            changed(rows.put(idOf.apply(item), item), item);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Add many rows under one write lock; rows replacing an existing ID are reported to listeners one by one
+    public void addAll(List<T> items) {
+        long stamp = lock.writeLock();
+        try {
+            // An ID repeated within the batch is still one new row, the last one given
+            Map<String, T> added = new LinkedHashMap<>(Math.max(16, (int) (items.size() / 0.75f) + 1));
+            for (T item : items) {
+                String id = idOf.apply(item);
+                T old = rows.put(id, item);
+                if (old != null && !added.containsKey(id)) {
+                    changed(old, item);
+                } else {
+                    added.put(id, item);
+                }
+            }
+            added(new ArrayList<>(added.values()));
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Add many rows under one write lock, except those whose ID is taken; returns the rows left out
+    public List<T> addAllNew(List<T> items) {
+        long stamp = lock.writeLock();
+        try {
+            List<T> added = new ArrayList<>(items.size());
+            List<T> taken = new ArrayList<>();
+            for (T item : items) {
+                String id = idOf.apply(item);
+                if (rows.containsKey(id)) {
+                    taken.add(item); // also an ID repeated within the batch: the first row keeps it
+                } else {
+                    rows.put(id, item);
+                    added.add(item);
+                }
+            }
+            if (!added.isEmpty()) {
+                added(added);
+            }
+            return taken;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Index and report rows put in by addAll() or addAllNew(), none of which replaced a row
+    private void added(List<T> newRows) {
+        version++;
+        snapshot = null;
+        for (Index<?> index : indexes) {
+            for (T item : newRows) {
+                index.insert(item);
+            }
+        }
+        for (Listener<T> listener : listeners) {
+            listener.addedAll(newRows);
+        }
+    }
+
+    // Replace the row with this ID, in place unless the new row has another ID; returns the old row or null
+    public T update(String id, T item) {
+        long stamp = lock.writeLock();
+        try {
+            return replace(id, item);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Replace the row with this ID unless the test rejects the new row; returns the old row, or null if there is none or it was rejected
+    public T updateIf(String id, T item, Predicate<T> test) {
+        long stamp = lock.writeLock();
+        try {
+            if (!rows.containsKey(id) || !test.test(item)) {
+                return null;
+            }
+            return replace(id, item);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Atomically replace the row with this ID by a function of it; returns the new row or null if there is none
+    public T compute(String id, UnaryOperator<T> change) {
+        long stamp = lock.writeLock();
+        try {
+            T current = rows.get(id);
+            if (current == null) {
+                return null;
+            }
+            T item = change.apply(current);
+            replace(id, item);
+            return item;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Remove the row with this ID, returns it or null
+    public T remove(String id) {
+        long stamp = lock.writeLock();
+        try {
+            T old = rows.remove(id);
+            if (old != null) {
+                changed(old, null);
+            }
+            return old;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private T replace(String id, T item) {
+        if (!rows.containsKey(id)) {
+            return null;
+        }
+        String newId = idOf.apply(item);
+        T old;
+        if (newId.equals(id)) {
+            old = rows.put(id, item);
+        } else {
+            old = rows.remove(id);
+            T displaced = rows.put(newId, item);
+            if (displaced != null) {
+                changed(displaced, null);
+            }
+        }
+        changed(old, item);
+        return old;
+    }
+
+    private void changed(T old, T item) {
+        version++;
+        snapshot = null;
+        for (Index<?> index : indexes) {
+            index.replace(old, item);
+        }
+        for (Listener<T> listener : listeners) {
+            listener.changed(old, item);
+        }
+    }
+
+    // ========== READS ==========
+
+    public T find(String id) {
+        return locked(() -> rows.get(id));
+    }
+
+    public boolean contains(String id) {
+        return locked(() -> rows.containsKey(id));
+    }
+
+    public int size() {
+        return optimistic(rows::size);
+    }
+
+    // Incremented by every change, lets readers tell whether a snapshot is still current
+    public long version() {
+        return optimistic(() -> version);
+    }
+
+    // Read-only list of all rows in order, unaffected by later changes
+    public List<T> snapshot() {
+        List<T> current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        long stamp = lock.readLock();
+        try {
+            current = snapshot;
+            if (current == null) {
+                // Readers may race to build it, but no writer can run until they are done
+                current = Collections.unmodifiableList(new ArrayList<>(rows.values()));
+                snapshot = current;
+            }
+            return current;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Run a read-only computation over the live rows, with writers held off until it returns
+    public <R> R read(Function<Collection<T>, R> action) {
+        long stamp = lock.readLock();
+        try {
+            return action.apply(Collections.unmodifiableCollection(rows.values()));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Read a single field without locking, retrying under the read lock if a write overlapped it
+    private <R> R optimistic(Supplier<R> read) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            R result = read.get();
+            if (lock.validate(stamp)) {
+                return result;
+            }
+        }
+        return locked(read);
+    }
+
+    private <R> R locked(Supplier<R> read) {
+        long stamp = lock.readLock();
+        try {
+            return read.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Secondary index from a key to the rows that have it
+     * Buckets are small lists in insertion order; removing a row scans only its own bucket.
+     */
+    public final class Index<K extends Comparable<K>> {
+        private final Function<T, K> keyOf;
+        private final Map<K, List<T>> buckets;
+
+        private Index(Function<T, K> keyOf, boolean sorted) {
+            this.keyOf = keyOf;
+            this.buckets = sorted ? new TreeMap<>() : new HashMap<>();
+        }
+
+        // Rows with this key
+        public List<T> get(K key) {
+            long stamp = lock.readLock();
+            try {
+                List<T> bucket = key != null ? buckets.get(key) : null;
+                return bucket != null ? new ArrayList<>(bucket) : new ArrayList<>();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        // Rows with keys in [from, to], both inclusive, in key order; sorted indexes only
+        public List<T> range(K from, K to) {
+            if (!(buckets instanceof NavigableMap)) {
+                throw new UnsupportedOperationException("Index is not sorted");
+            }
+            List<T> out = new ArrayList<>();
+            if (from.compareTo(to) > 0) {
+                return out;
+            }
+            long stamp = lock.readLock();
+            try {
+                Collection<List<T>> inRange = ((NavigableMap<K, List<T>>) buckets).subMap(from, true, to, true).values();
+                for (List<T> bucket : inRange) {
+                    out.addAll(bucket);
+                }
+                return out;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        // Number of rows with this key
+        public int count(K key) {
+            return locked(() -> {
+                List<T> bucket = key != null ? buckets.get(key) : null;
+                return bucket != null ? bucket.size() : 0;
+            });
+        }
+
+        private void insert(T item) {
+            K key = keyOf.apply(item);
+            if (key != null) {
+                buckets.computeIfAbsent(key, k -> new ArrayList<>(4)).add(item);
+            }
+        }
+
+        private void delete(T item) {
+            K key = keyOf.apply(item);
+            List<T> bucket = key != null ? buckets.get(key) : null;
+            if (bucket == null) {
+                return;
+            }
+            int at = indexOf(bucket, item);
+            if (at >= 0) {
+                bucket.remove(at);
+                if (bucket.isEmpty()) {
+                    buckets.remove(key);
+                }
+            }
+        }
+
+        private void replace(T old, T item) {
+            if (old != null && item != null && Objects.equals(keyOf.apply(old), keyOf.apply(item))) {
+                List<T> bucket = buckets.get(keyOf.apply(old));
+                int at = bucket != null ? indexOf(bucket, old) : -1;
+                if (at >= 0) {
+                    bucket.set(at, item); // same key, keep its place in the bucket
+                    return;
+                }
+            }
+            if (old != null) {
+                delete(old);
+            }
+            if (item != null) {
+                insert(item);
+            }
+        }
+
+        private int indexOf(List<T> bucket, T item) {
+            for (int i = bucket.size() - 1; i >= 0; i--) {
+                if (bucket.get(i) == item) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
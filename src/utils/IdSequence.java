@@ -0,0 +1,147 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persisted high-water-mark ID sequence for one entity, e.g. P001, P002, ...
+ * next() is a single atomic increment, so any number of threads can take IDs
+ * without a lock or a scan of the records. The file holds a ceiling reserved
+ * ahead of the counter and is only rewritten once per block of IDs; after a
+ * crash the sequence resumes above the ceiling, so an ID is never handed out
+ * twice, even for records that have since been deleted.
+ */
+public class IdSequence {
+    // IDs reserved per write of the sequence file
+    private static final int RESERVE_BLOCK = 1024;
+
+    private final Path path;
+    private final String prefix;
+    private final int width;
+    private final AtomicLong last = new AtomicLong();
+    private volatile long reserved; // highest number covered by the sequence file
+
+    /**
+     * @param prefix letters before the number, e.g. "PR"
+     * @param width  minimum digits, shorter numbers are zero-padded; longer ones just grow
+     */
+    public IdSequence(String path, String prefix, int width) {
+        this.path = Paths.get(path);
+        this.prefix = prefix;
+        this.width = width;
+        long restored = readPersisted();
+        last.set(restored);
+        reserved = restored;
+    }
+
+    // Next unused ID
+    public String next() {
+        long number = last.incrementAndGet();
+        if (number > reserved) {
+            reserve(number);
+        }
+        return format(number);
+    }
+
+    // Reserve count consecutive numbers at once, returns the first; pass each to format()
+    public long nextBlock(int count) {
+        long last = this.last.addAndGet(count);
+        if (last > reserved) {
+            reserve(last);
+        }
+        return last - count + 1;
+    }
+
+    // Account for an ID that exists in the data, so it is never handed out again
+    public void observe(String id) {
+        long number = parse(id);
+        if (number > 0) {
+            last.accumulateAndGet(number, Math::max);
+        }
+    }
+
+    // Highest number handed out or observed so far
+    public long current() {
+        return last.get();
+    }
+
+    // Persist the exact high-water mark, so a clean restart leaves no gap
+    public synchronized void close() {
+        long value = last.get();
+        if (write(value)) {
+            reserved = value;
+        }
+    }
+
+    private synchronized void reserve(long number) {
+        if (number <= reserved) {
+            return; // another thread reserved a block covering it
+        }
+        long ceiling = Math.max(number, last.get()) + RESERVE_BLOCK;
+        if (write(ceiling)) {
+            reserved = ceiling;
+        }
+    }
+
+    // ID for a number of this sequence, e.g. 7 to "P007"
+    public String format(long number) {
+        String digits = Long.toString(number);
+        StringBuilder sb = new StringBuilder(prefix.length() + Math.max(width, digits.length()));
+        sb.append(prefix);
+        for (int i = digits.length(); i < width; i++) {
+            sb.append('0');
+        }
+        return sb.append(digits).toString();
+    }
+
+    // Number part of an ID with this prefix, -1 if it has another form
+    private long parse(String id) {
+        if (id == null || !id.startsWith(prefix) || id.length() == prefix.length()
+                || id.length() - prefix.length() > 18) {
+            return -1;
+        }
+        long number = 0;
+        for (int i = prefix.length(); i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            number = number * 10 + (c - '0');
+        }
+        return number;
+    }
+
+    private long readPersisted() {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim());
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Error reading ID sequence " + path + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    private boolean write(long value) {
+        Path temp = Paths.get(path + ".tmp");
+        try {
+            Files.write(temp, Long.toString(value).getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error saving ID sequence " + path + ": " + e.getMessage());
+            return false;
+        }
+    }
+}
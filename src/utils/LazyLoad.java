@@ -0,0 +1,62 @@
+package utils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * A value loaded on a background executor
+ * Eager loads start immediately, lazy loads start on first access.
+ * Either way the result is exposed as a future, and get() blocks until it is ready.
+ * A load the executor rejects, because it is shutting down, runs on the calling thread.
+ */
+public class LazyLoad<T> {
+    private final Supplier<T> loader;
+    private final Executor executor;
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    public LazyLoad(Supplier<T> loader, Executor executor, boolean eager) {
+        this.loader = loader;
+        this.executor = executor;
+        if (eager) {
+            start();
+        }
+    }
+
+    // Future of the loaded value, starts the load if it has not started yet
+    public CompletableFuture<T> future() {
+        start();
+        return future;
+    }
+
+    // Loaded value, blocks until the load finishes
+    public T get() {
+        return future().join();
+    }
+
+    // True once the load has been requested (it may still be running)
+    public boolean isStarted() {
+        return started.get();
+    }
+
+    private void start() {
+        if (started.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::load);
+            } catch (RejectedExecutionException e) {
+                load();
+            }
+        }
+    }
+
+    private void load() {
+        try {
+            future.complete(loader.get());
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+        }
+    }
+}
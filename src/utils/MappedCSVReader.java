@@ -0,0 +1,335 @@
+package utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Zero-copy CSV reader
+ * Maps the file into memory and scans the bytes for ',' and '\n' directly,
+ * instead of String.split on every line. A row only records field offsets,
+ * so a mapper materialises just the fields it needs (and can read numbers
+ * straight from the bytes). Fields are trimmed like String.trim().
+ */
+public final class MappedCSVReader {
+    // Files larger than this are mapped window by window
+    private static final long WINDOW_SIZE = 1L << 28;
+    // Bytes copied out of the mapping per scan
+    private static final int BLOCK_SIZE = 1 << 16;
+    // Files at least this large are split into chunks and parsed in parallel
+    private static final long PARALLEL_THRESHOLD = 16L << 20;
+    // Smallest chunk handed to one fork-join task
+    private static final long MIN_CHUNK_SIZE = 4L << 20;
+
+    private MappedCSVReader() {
+    }
+
+    /**
+     * Turns one row into an entity, returns null to skip the row
+     * Mappers are called from several threads when a file is parsed in parallel.
+     */
+    public interface RowMapper<T> {
+        T map(Row row);
+    }
+
+    // Read every data row of a file, skipping the header line; large files are parsed in parallel
+    public static <T> List<T> read(String filepath, int minFields, RowMapper<T> mapper) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filepath), StandardOpenOption.READ)) {
+            long start = skipHeader(channel);
+            if (channel.size() - start >= PARALLEL_THRESHOLD) {
+                return readChunks(channel, start, minFields, mapper, ForkJoinPool.commonPool());
+            }
+            List<T> out = new ArrayList<>();
+            readRange(channel, start, channel.size(), minFields, mapper, out);
+            return out;
+        }
+    }
+
+    /**
+     * Read a file by splitting it into byte ranges aligned on line boundaries,
+     * parsing the ranges on a fork-join pool and merging the results in file order
+     */
+    public static <T> List<T> readParallel(String filepath, int minFields, RowMapper<T> mapper,
+                                           ForkJoinPool pool) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filepath), StandardOpenOption.READ)) {
+            return readChunks(channel, skipHeader(channel), minFields, mapper, pool);
+        }
+    }
+
+    private static <T> List<T> readChunks(FileChannel channel, long start, int minFields,
+                                          RowMapper<T> mapper, ForkJoinPool pool) throws IOException {
+        long[] bounds = chunkBounds(channel, start, pool.getParallelism());
+        List<List<T>> parts = new ArrayList<>(bounds.length - 1);
+        for (int i = 0; i < bounds.length - 1; i++) {
+            parts.add(null);
+        }
+        try {
+            pool.invoke(new ChunkTask<>(channel, bounds, 0, bounds.length - 1, minFields, mapper, parts));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        int total = 0;
+        for (List<T> part : parts) {
+            total += part.size();
+        }
+        List<T> out = new ArrayList<>(total);
+        for (List<T> part : parts) {
+            out.addAll(part);
+        }
+        return out;
+    }
+
+    // Split [start, size) into about four chunks per worker, each boundary moved to the next line start
+    static long[] chunkBounds(FileChannel channel, long start, int parallelism) throws IOException {
+        long size = channel.size();
+        long length = size - start;
+        int chunks = (int) Math.max(1, Math.min((long) parallelism * 4, length / MIN_CHUNK_SIZE));
+        long[] bounds = new long[chunks + 1];
+        bounds[0] = start;
+        int count = 1;
+        for (int i = 1; i < chunks; i++) {
+            long bound = lineStartAtOrAfter(channel, start + length * i / chunks);
+            if (bound > bounds[count - 1] && bound < size) {
+                bounds[count++] = bound;
+            }
+        }
+        bounds[count++] = size;
+        return Arrays.copyOf(bounds, count);
+    }
+
+    // First line start at or after pos
+    static long lineStartAtOrAfter(FileChannel channel, long pos) throws IOException {
+        long size = channel.size();
+        long at = pos - 1; // pos is a line start if the byte before it is '\n'
+        while (at < size) {
+            long length = Math.min(BLOCK_SIZE, size - at);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, at, length);
+            for (int i = 0; i < length; i++) {
+                if (buf.get(i) == '\n') {
+                    return at + i + 1;
+                }
+            }
+            at += length;
+        }
+        return size;
+    }
+
+    // Offset of the first byte after the header line
+    static long skipHeader(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long pos = 0;
+        while (pos < size) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW_SIZE, size - pos));
+            for (int i = 0; i < buf.limit(); i++) {
+                if (buf.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += buf.limit();
+        }
+        return size;
+    }
+
+    /**
+     * Parse the rows in [start, end). Both offsets must be at the beginning of a line
+     * (or end of file); rows with fewer than minFields fields are skipped.
+     * The mapped window is scanned in blocks copied with one bulk get, which is much
+     * cheaper than reading the buffer byte by byte; a line cut by a block boundary is
+     * carried over to the front of the next block.
+     */
+    static <T> void readRange(FileChannel channel, long start, long end, int minFields,
+                              RowMapper<T> mapper, List<T> out) throws IOException {
+        Row row = new Row();
+        byte[] block = new byte[BLOCK_SIZE];
+        int filled = 0;
+        long pos = start;
+        while (pos < end) {
+            long length = Math.min(WINDOW_SIZE, end - pos);
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+            while (buf.hasRemaining()) {
+                if (filled == block.length) {
+                    block = Arrays.copyOf(block, block.length * 2); // line longer than a block
+                }
+                int n = Math.min(block.length - filled, buf.remaining());
+                buf.get(block, filled, n);
+                filled += n;
+                int consumed = scan(block, filled, row, minFields, mapper, out);
+                System.arraycopy(block, consumed, block, 0, filled - consumed);
+                filled -= consumed;
+            }
+            pos += length;
+        }
+        if (filled > 0) {
+            // Final line without a trailing newline
+            block = Arrays.copyOf(block, Math.max(block.length, filled + 1));
+            block[filled] = '\n';
+            scan(block, filled + 1, row, minFields, mapper, out);
+        }
+    }
+
+    // Parse the complete lines in bytes[0, limit), returns the number of bytes consumed
+    private static <T> int scan(byte[] bytes, int limit, Row row, int minFields,
+                                RowMapper<T> mapper, List<T> out) {
+        int lineStart = 0;
+        int fieldStart = 0;
+        row.reset(bytes);
+        for (int i = 0; i < limit; i++) {
+            byte b = bytes[i];
+            if (b == ',') {
+                row.addField(fieldStart, i);
+                fieldStart = i + 1;
+            } else if (b == '\n') {
+                row.addField(fieldStart, i);
+                emit(row, minFields, mapper, out);
+                row.reset(bytes);
+                lineStart = i + 1;
+                fieldStart = lineStart;
+            }
+        }
+        return lineStart;
+    }
+
+    private static <T> void emit(Row row, int minFields, RowMapper<T> mapper, List<T> out) {
+        if (row.size() < minFields || row.isBlank()) {
+            return;
+        }
+        T item = mapper.map(row);
+        if (item != null) {
+            out.add(item);
+        }
+    }
+
+    // Fork-join task parsing chunks [from, to), each leaf writes its rows into parts[chunk]
+    private static final class ChunkTask<T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long[] bounds;
+        private final int from;
+        private final int to;
+        private final int minFields;
+        private final RowMapper<T> mapper;
+        private final List<List<T>> parts;
+
+        ChunkTask(FileChannel channel, long[] bounds, int from, int to, int minFields,
+                  RowMapper<T> mapper, List<List<T>> parts) {
+            this.channel = channel;
+            this.bounds = bounds;
+            this.from = from;
+            this.to = to;
+            this.minFields = minFields;
+            this.mapper = mapper;
+            this.parts = parts;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ChunkTask<>(channel, bounds, from, mid, minFields, mapper, parts),
+                          new ChunkTask<>(channel, bounds, mid, to, minFields, mapper, parts));
+                return;
+            }
+            List<T> out = new ArrayList<>();
+            try {
+                readRange(channel, bounds[from], bounds[to], minFields, mapper, out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            parts.set(from, out);
+        }
+    }
+
+    /**
+     * One CSV row, field offsets into the current block, reused for every line
+     */
+    public static final class Row {
+        private byte[] buf;
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private int count;
+
+        void reset(byte[] buf) {
+            this.buf = buf;
+            count = 0;
+        }
+
+        void addField(int start, int end) {
+            // Trim like String.trim(), this also drops a '\r' before '\n'
+            while (start < end && (buf[start] & 0xFF) <= ' ') {
+                start++;
+            }
+            while (end > start && (buf[end - 1] & 0xFF) <= ' ') {
+                end--;
+            }
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+
+        boolean isBlank() {
+            return count == 1 && starts[0] == ends[0];
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public int length(int field) {
+            return ends[field] - starts[field];
+        }
+
+        // Materialise a field as a String
+        public String get(int field) {
+            int start = starts[field];
+            int length = ends[field] - start;
+            if (length == 0) {
+                return "";
+            }
+            return new String(buf, start, length, StandardCharsets.UTF_8);
+        }
+
+        // Field as a String shared through a dictionary, no allocation for values seen before
+        public String intern(int field, StringDictionary dictionary) {
+            return dictionary.intern(buf, starts[field], ends[field] - starts[field]);
+        }
+
+        // Parse a decimal int directly from the bytes
+        public int getInt(int field) {
+            int pos = starts[field];
+            int end = ends[field];
+            if (pos == end) {
+                throw new NumberFormatException("Empty number in field " + field);
+            }
+            boolean negative = buf[pos] == '-';
+            if (negative || buf[pos] == '+') {
+                pos++;
+            }
+            if (pos == end || end - pos > 9) {
+                return Integer.parseInt(get(field)); // sign only or possible overflow, let the JDK decide
+            }
+            int value = 0;
+            for (; pos < end; pos++) {
+                int digit = buf[pos] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new NumberFormatException("For input string: \"" + get(field) + "\"");
+                }
+                value = value * 10 + digit;
+            }
+            return negative ? -value : value;
+        }
+    }
+}
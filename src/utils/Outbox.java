@@ -0,0 +1,591 @@
+package utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Durable store of outgoing emails, kept in a few large files instead of one file per email
+ * Message bodies are appended to the current segment file, which is rolled over
+ * once it passes SEGMENT_BYTES. index.log records where each body lies and every
+ * change to its delivery state, and is replayed on startup, so undelivered mail
+ * survives a restart and delivered mail is not sent again. Lines are
+ *   A,id,segment,offset,length,sender,recipient,subject   body appended
+ *   D,id                                                   delivered
+ *   R,id,attempts,error                                    attempt failed, retry later
+ *   X,id,attempts,error                                    given up
+ *   C,delivered,failed,retries                             counts so far, ends a compacted index
+ * with ',', '\' and line breaks in values escaped by a backslash.
+ *
+ * Only pending messages stay in memory. Delivered and failed ones are kept in
+ * a bounded set of recent outcomes for find(), then forgotten. Once index.log
+ * has grown well past what is still live, it is rewritten with just the live
+ * messages, and segments no pending message uses are deleted. Memory, index
+ * size and startup time follow the backlog, not the number of messages ever sent.
+ *
+ * Meant for one delivery thread: due() hands out messages that stay pending
+ * until that thread reports on them.
+ */
+public class Outbox {
+    public enum State { PENDING, DELIVERED, FAILED }
+
+    /**
+     * Writes one body into the segment through the buffer, as TextTemplate.write() does
+     */
+    public interface Body {
+        void write(WritableByteChannel channel, ByteBuffer buffer) throws IOException;
+    }
+
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final String INDEX_FILE = "index.log";
+    // Attempts before a message is given up on, and the delay after the first failure, doubled after each
+    private static final int MAX_ATTEMPTS = 6;
+    private static final long RETRY_DELAY_MILLIS = 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 5 * 60 * 1000;
+    // Delivered and failed messages find() still knows about
+    private static final int SETTLED_KEPT = 10_000;
+    // The index is rewritten once it has this many lines and twice what a rewrite would leave
+    private static final long COMPACT_MIN_LINES = 100_000;
+
+    private final Path dir;
+    private final Map<String, Message> pending = new LinkedHashMap<>(); // by ID, in the order they were added
+    private final Map<String, Message> settled = new LinkedHashMap<>(); // most recent last
+    private final Map<Integer, FileChannel> segments = new TreeMap<>();
+    private FileChannel active;
+    private int activeNumber;
+    private Writer index;
+    private long indexLines;
+    private long compactAt;
+    private long delivered;
+    private long failed;
+    private long retries;
+
+    // Open the outbox in this directory, creating it if needed, and recover its state
+    public Outbox(String dir) throws IOException {
+        this.dir = Paths.get(dir);
+        Files.createDirectories(this.dir);
+        replayIndex();
+        try (Stream<Path> files = Files.list(this.dir)) {
+            files.map(p -> p.getFileName().toString())
+                 .filter(name -> name.startsWith("segment-") && name.endsWith(".dat"))
+                 .forEach(name -> activeNumber = Math.max(activeNumber, segmentNumber(name)));
+        }
+        if (activeNumber == 0) {
+            activeNumber = 1;
+        }
+        active = openSegment(activeNumber, true);
+        active.position(active.size());
+        Path indexPath = this.dir.resolve(INDEX_FILE);
+        boolean torn = endsTorn(indexPath);
+        index = openIndex();
+        if (torn) {
+            index.write('\n'); // the next entry must not run on from a line cut short by a crash
+        }
+        compactAt = Math.max(COMPACT_MIN_LINES, 2 * liveLines());
+        if (indexLines >= compactAt) {
+            compact();
+        }
+    }
+
+    /**
+     * Append a message for delivery; a message with the same ID replaces the earlier one
+     * @param buffer scratch space for rendering the body
+     */
+    public synchronized Message append(String id, String sender, String recipient, String subject,
+                                       Body body, ByteBuffer buffer) throws IOException {
+        if (active.position() >= SEGMENT_BYTES) {
+            roll();
+        }
+        long offset = active.position();
+        body.write(active, buffer);
+        int length = (int) (active.position() - offset);
+        Message message = new Message(id, sender, recipient, subject, activeNumber, offset, length);
+        StringBuilder line = new StringBuilder("A,");
+        escape(line, id).append(',').append(activeNumber).append(',').append(offset).append(',').append(length)
+                .append(',');
+        escape(line, sender).append(',');
+        escape(line, recipient).append(',');
+        escape(line, subject).append('\n');
+        index.append(line);
+        index.flush();
+        pending.remove(id);
+        settled.remove(id);
+        pending.put(id, message);
+        notifyAll();
+        lineWritten();
+        return message;
+    }
+
+    // Up to max pending messages whose next attempt is due, oldest first; waits up to waitMillis for one
+    public synchronized List<Message> due(int max, long waitMillis) throws InterruptedException {
+        List<Message> out = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + waitMillis;
+        while (true) {
+            long now = System.currentTimeMillis();
+            long nextDue = Long.MAX_VALUE;
+            for (Message m : pending.values()) {
+                if (m.nextAttemptMillis <= now) {
+                    out.add(m);
+                    if (out.size() == max) {
+                        break;
+                    }
+                } else {
+                    nextDue = Math.min(nextDue, m.nextAttemptMillis);
+                }
+            }
+            if (!out.isEmpty() || now >= deadline) {
+                return out;
+            }
+            wait(Math.max(1, Math.min(deadline, nextDue) - now));
+        }
+    }
+
+    // The body as stored
+    public byte[] read(Message message) throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            channel = message.segment == activeNumber ? active : openSegment(message.segment, false);
+        }
+        ByteBuffer body = ByteBuffer.allocate(message.length);
+        while (body.hasRemaining()) {
+            if (channel.read(body, message.offset + body.position()) < 0) {
+                throw new IOException("Segment " + message.segment + " is shorter than its index");
+            }
+        }
+        return body.array();
+    }
+
+    public synchronized void delivered(Message message) {
+        if (pending.get(message.id) != message) {
+            return;
+        }
+        message.state = State.DELIVERED;
+        settle(message);
+        delivered++;
+        record(new StringBuilder("D,").append(escapeText(message.id)));
+    }
+
+    /**
+     * Record a failed attempt
+     * @param permanent true if retrying cannot help, e.g. the recipient was refused
+     */
+    public synchronized void failed(Message message, String error, boolean permanent) {
+        if (pending.get(message.id) != message) {
+            return;
+        }
+        message.attempts++;
+        message.lastError = error;
+        boolean giveUp = permanent || message.attempts >= MAX_ATTEMPTS;
+        if (giveUp) {
+            message.state = State.FAILED;
+            settle(message);
+            failed++;
+        } else {
+            message.nextAttemptMillis = System.currentTimeMillis() + retryDelay(message.attempts);
+            retries++;
+        }
+        StringBuilder line = new StringBuilder(giveUp ? "X," : "R,");
+        escape(line, message.id).append(',').append(message.attempts).append(',');
+        record(escape(line, error));
+    }
+
+    // Delivery state of a message, null if the outbox has never had it or settled it too long ago to remember
+    public synchronized Message find(String id) {
+        Message m = pending.get(id);
+        return m != null ? m : settled.get(id);
+    }
+
+    public synchronized Stats getStats() {
+        long bytes = 0;
+        try {
+            for (int n = 1; n <= activeNumber; n++) {
+                Path segment = segmentPath(n);
+                if (Files.exists(segment)) {
+                    bytes += Files.size(segment);
+                }
+            }
+        } catch (IOException e) {
+            // Leave the total as far as it got
+        }
+        return new Stats(pending.size() + settled.size(), pending.size(), delivered, failed, retries, activeNumber, bytes);
+    }
+
+    public synchronized void close() {
+        try {
+            index.close();
+            active.force(false);
+            active.close();
+            for (FileChannel channel : segments.values()) {
+                channel.close();
+            }
+            segments.clear();
+        } catch (IOException e) {
+            System.err.println("Error closing outbox: " + e.getMessage());
+        }
+    }
+
+    private void roll() throws IOException {
+        active.force(false);
+        segments.put(activeNumber, active); // kept open for reading
+        activeNumber++;
+        active = openSegment(activeNumber, true);
+    }
+
+    private FileChannel openSegment(int number, boolean writable) throws IOException {
+        if (writable) {
+            return FileChannel.open(segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                    StandardOpenOption.WRITE);
+        }
+        FileChannel channel = segments.get(number);
+        if (channel == null) {
+            channel = FileChannel.open(segmentPath(number), StandardOpenOption.READ);
+            segments.put(number, channel);
+        }
+        return channel;
+    }
+
+    private Path segmentPath(int number) {
+        return dir.resolve(String.format("segment-%06d.dat", number));
+    }
+
+    private static int segmentNumber(String name) {
+        try {
+            return Integer.parseInt(name.substring("segment-".length(), name.length() - ".dat".length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static boolean endsTorn(Path path) throws IOException {
+        if (!Files.exists(path) || Files.size(path) == 0) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            return last.get(0) != '\n';
+        }
+    }
+
+    private static long retryDelay(int attempts) {
+        return Math.min(MAX_RETRY_DELAY_MILLIS, RETRY_DELAY_MILLIS << Math.min(20, attempts - 1));
+    }
+
+    private void record(StringBuilder line) {
+        try {
+            index.append(line.append('\n'));
+            index.flush();
+            lineWritten();
+        } catch (IOException e) {
+            System.err.println("Error writing outbox index: " + e.getMessage());
+        }
+    }
+
+    private void lineWritten() throws IOException {
+        if (++indexLines >= compactAt) {
+            compact();
+        }
+    }
+
+    // Move a message out of the pending set into the bounded recent outcomes
+    private void settle(Message m) {
+        pending.remove(m.id);
+        settled.remove(m.id);
+        settled.put(m.id, m);
+        if (settled.size() > SETTLED_KEPT) {
+            Iterator<Message> oldest = settled.values().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    // Lines a rewritten index would have
+    private long liveLines() {
+        long lines = 1;
+        for (Message m : pending.values()) {
+            lines += m.attempts > 0 ? 2 : 1;
+        }
+        return lines + 2L * settled.size();
+    }
+
+    /**
+     * Rewrite index.log with only what is still live, then delete segments no pending message uses
+     * The new index is written beside the old one and moved over it, so a crash
+     * leaves one or the other whole.
+     */
+    private void compact() throws IOException {
+        Path path = dir.resolve(INDEX_FILE);
+        Path temp = dir.resolve(INDEX_FILE + ".tmp");
+        long lines = 0;
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            StringBuilder line = new StringBuilder(256);
+            for (Message m : settled.values()) {
+                appendLine(out, added(line, m));
+                line.setLength(0);
+                line.append(m.state == State.DELIVERED ? "D," : "X,");
+                escape(line, m.id);
+                if (m.state == State.FAILED) {
+                    line.append(',').append(m.attempts).append(',');
+                    escape(line, m.lastError);
+                }
+                appendLine(out, line);
+                lines += 2;
+            }
+            for (Message m : pending.values()) {
+                appendLine(out, added(line, m));
+                lines++;
+                if (m.attempts > 0) {
+                    line.setLength(0);
+                    line.append("R,");
+                    escape(line, m.id).append(',').append(m.attempts).append(',');
+                    appendLine(out, escape(line, m.lastError));
+                    lines++;
+                }
+            }
+            // Last, so replay ends with the counts as they are now
+            line.setLength(0);
+            line.append("C,").append(delivered).append(',').append(failed).append(',').append(retries);
+            appendLine(out, line);
+            lines++;
+        }
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        index.close();
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            index = openIndex();
+        }
+        indexLines = lines;
+        compactAt = Math.max(COMPACT_MIN_LINES, 2 * lines);
+        deleteUnusedSegments();
+    }
+
+    private void deleteUnusedSegments() {
+        Set<Integer> used = new HashSet<>();
+        for (Message m : pending.values()) {
+            used.add(m.segment);
+        }
+        for (int n = 1; n < activeNumber; n++) {
+            if (used.contains(n)) {
+                continue;
+            }
+            try {
+                FileChannel channel = segments.remove(n);
+                if (channel != null) {
+                    channel.close();
+                }
+                Files.deleteIfExists(segmentPath(n));
+            } catch (IOException e) {
+                System.err.println("Error deleting outbox segment " + n + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static StringBuilder added(StringBuilder line, Message m) {
+        line.setLength(0);
+        line.append("A,");
+        escape(line, m.id).append(',').append(m.segment).append(',').append(m.offset).append(',')
+                .append(m.length).append(',');
+        escape(line, m.sender).append(',');
+        escape(line, m.recipient).append(',');
+        return escape(line, m.subject);
+    }
+
+    private static void appendLine(Writer out, StringBuilder line) throws IOException {
+        out.append(line).append('\n');
+    }
+
+    private Writer openIndex() throws IOException {
+        return Files.newBufferedWriter(dir.resolve(INDEX_FILE), StandardCharsets.UTF_8,
+                                       StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    // Rebuild every message's state; a line torn by a crash is skipped
+    private void replayIndex() throws IOException {
+        Path path = dir.resolve(INDEX_FILE);
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (BufferedReader br = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                indexLines++;
+                List<String> f = split(line);
+                try {
+                    replay(f);
+                } catch (RuntimeException e) {
+                    System.err.println("Error in outbox index, skipping: " + line);
+                }
+            }
+        }
+    }
+
+    private void replay(List<String> f) {
+        if (f.get(0).equals("C")) {
+            delivered = Long.parseLong(f.get(1));
+            failed = Long.parseLong(f.get(2));
+            retries = Long.parseLong(f.get(3));
+            return;
+        }
+        String id = f.get(1);
+        if (f.get(0).equals("A")) {
+            Message m = new Message(id, f.get(5), f.get(6), f.get(7), Integer.parseInt(f.get(2)),
+                                    Long.parseLong(f.get(3)), Integer.parseInt(f.get(4)));
+            pending.remove(id);
+            settled.remove(id);
+            pending.put(id, m);
+            return;
+        }
+        Message m = pending.get(id);
+        if (m == null) {
+            return; // settled already
+        }
+        switch (f.get(0)) {
+            case "D":
+                m.state = State.DELIVERED;
+                settle(m);
+                delivered++;
+                break;
+            case "R":
+            case "X":
+                m.attempts = Integer.parseInt(f.get(2));
+                m.lastError = f.get(3);
+                if (f.get(0).equals("X")) {
+                    m.state = State.FAILED;
+                    settle(m);
+                    failed++;
+                } else {
+                    retries++;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown entry " + f.get(0));
+        }
+    }
+
+    private static List<String> split(String line) {
+        List<String> fields = new ArrayList<>(8);
+        StringBuilder field = new StringBuilder();
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < line.length()) {
+                char next = line.charAt(++i);
+                field.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static String escapeText(String value) {
+        return escape(new StringBuilder(), value).toString();
+    }
+
+    private static StringBuilder escape(StringBuilder sb, String value) {
+        if (value == null) {
+            return sb;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\n') {
+                sb.append("\\n");
+            } else if (c == '\r') {
+                sb.append("\\r");
+            } else {
+                if (c == ',' || c == '\\') {
+                    sb.append('\\');
+                }
+                sb.append(c);
+            }
+        }
+        return sb;
+    }
+
+    /**
+     * One stored email and its delivery state; the state fields change under the outbox's lock
+     */
+    public static class Message {
+        public final String id;
+        public final String sender;
+        public final String recipient;
+        public final String subject;
+        final int segment;
+        final long offset;
+        final int length;
+        volatile State state = State.PENDING;
+        volatile int attempts;
+        volatile String lastError;
+        long nextAttemptMillis;
+
+        Message(String id, String sender, String recipient, String subject, int segment, long offset, int length) {
+            this.id = id;
+            this.sender = sender;
+            this.recipient = recipient;
+            this.subject = subject;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public State getState() { return state; }
+        public int getAttempts() { return attempts; }
+        public String getLastError() { return lastError; }
+    }
+
+    /**
+     * Point-in-time outbox size and delivery counts
+     */
+    public static class Stats {
+        public final long messages;
+        public final long pending;
+        public final long delivered;
+        public final long failed;
+        public final long retries;
+        public final int segments;
+        public final long bytes;
+
+        Stats(long messages, long pending, long delivered, long failed, long retries, int segments, long bytes) {
+            this.messages = messages;
+            this.pending = pending;
+            this.delivered = delivered;
+            this.failed = failed;
+            this.retries = retries;
+            this.segments = segments;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            return "Outbox{messages=" + messages + ", pending=" + pending + ", delivered=" + delivered +
+                   ", failed=" + failed + ", retries=" + retries + ", segments=" + segments + ", bytes=" + bytes + "}";
+        }
+    }
+}
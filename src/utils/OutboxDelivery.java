@@ -0,0 +1,170 @@
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background thread that drains an Outbox to an SMTP server
+ * Due messages are sent in batches over one reused, pipelined connection and
+ * each reply settles its message: 2xx delivered, 4xx retried later, 5xx failed
+ * for good. If the connection itself fails the batch stays pending and the
+ * thread reconnects after a growing delay, without counting it against the
+ * messages. A batch cut off mid-way may be sent again, so delivery is at least once.
+ */
+public class OutboxDelivery {
+    private static final int BATCH_SIZE = 100;
+    private static final long IDLE_WAIT_MILLIS = 1000;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 60_000;
+
+    private final Outbox outbox;
+    private final SmtpClient client;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile long sent;
+    private volatile long batches;
+    private volatile String lastError;
+
+    public OutboxDelivery(Outbox outbox, String host, int port) {
+        this.outbox = outbox;
+        this.client = new SmtpClient(host, port, "healthcare.local");
+        this.thread = new Thread(this::run, "outbox-delivery");
+        thread.setDaemon(true);
+    }
+
+    public OutboxDelivery start() {
+        thread.start();
+        return this;
+    }
+
+    // Finish the batch in hand, then close the connection; undelivered mail waits in the outbox
+    public void stop() {
+        // Not interrupted: that would close the outbox's file channels under it
+        running = false;
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            // Still in a send; it closes the connection itself once that returns
+            System.err.println("Mail delivery is still sending after 30 s, leaving it to finish");
+        }
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    public long getBatches() {
+        return batches;
+    }
+
+    public long getConnections() {
+        return client.getConnections();
+    }
+
+    // Why the last connection failed, null if it has not
+    public String getLastError() {
+        return lastError;
+    }
+
+    // The connection is only used here, and closed here when the thread ends
+    private void run() {
+        try {
+            deliverUntilStopped();
+        } finally {
+            client.close();
+        }
+    }
+
+    private void deliverUntilStopped() {
+        long reconnectDelay = RECONNECT_DELAY_MILLIS;
+        while (running) {
+            try {
+                List<Outbox.Message> due = outbox.due(BATCH_SIZE, IDLE_WAIT_MILLIS);
+                if (due.isEmpty()) {
+                    continue;
+                }
+                if (deliver(due)) {
+                    reconnectDelay = RECONNECT_DELAY_MILLIS;
+                } else {
+                    long until = System.currentTimeMillis() + reconnectDelay;
+                    while (running && System.currentTimeMillis() < until) {
+                        Thread.sleep(100);
+                    }
+                    reconnectDelay = Math.min(MAX_RECONNECT_DELAY_MILLIS, reconnectDelay * 2);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Send one batch; false if the connection failed and it should be tried again later
+    private boolean deliver(List<Outbox.Message> due) {
+        List<Outbox.Message> sending = new ArrayList<>(due.size());
+        List<SmtpClient.Mail> mails = new ArrayList<>(due.size());
+        for (Outbox.Message m : due) {
+            if (m.recipient == null || m.recipient.isEmpty()) {
+                outbox.failed(m, "No recipient address", true);
+                continue;
+            }
+            try {
+                mails.add(new SmtpClient.Mail(m.sender, m.recipient, compose(m, outbox.read(m))));
+                sending.add(m);
+            } catch (IOException e) {
+                outbox.failed(m, "Cannot read message: " + e.getMessage(), true);
+            }
+        }
+        if (mails.isEmpty()) {
+            return true;
+        }
+        List<String> replies;
+        try {
+            replies = client.send(mails);
+        } catch (IOException e) {
+            lastError = e.getMessage();
+            System.err.println("Error delivering mail: " + e.getMessage());
+            return false;
+        }
+        batches++;
+        for (int i = 0; i < sending.size(); i++) {
+            String reply = replies.get(i);
+            int code = SmtpClient.code(reply);
+            if (code / 100 == 2) {
+                outbox.delivered(sending.get(i));
+                sent++;
+            } else {
+                outbox.failed(sending.get(i), reply, code / 100 != 4);
+            }
+        }
+        return true;
+    }
+
+    // Headers, then the stored body
+    private static byte[] compose(Outbox.Message m, byte[] body) {
+        StringBuilder headers = new StringBuilder(256);
+        headers.append("From: ").append(header(m.sender)).append("\r\n");
+        headers.append("To: ").append(header(m.recipient)).append("\r\n");
+        headers.append("Subject: ").append(header(m.subject)).append("\r\n");
+        headers.append("Message-ID: <").append(header(m.id)).append("@healthcare.local>\r\n");
+        headers.append("MIME-Version: 1.0\r\n");
+        headers.append("Content-Type: text/plain; charset=UTF-8\r\n");
+        headers.append("Content-Transfer-Encoding: 8bit\r\n\r\n");
+        ByteArrayOutputStream out = new ByteArrayOutputStream(headers.length() + body.length);
+        byte[] head = headers.toString().getBytes(StandardCharsets.UTF_8);
+        out.write(head, 0, head.length);
+        out.write(body, 0, body.length);
+        return out.toByteArray();
+    }
+
+    // A header value on one line
+    private static String header(String value) {
+        return value == null ? "" : value.replace('\r', ' ').replace('\n', ' ');
+    }
+}
@@ -0,0 +1,287 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Minimal SMTP client that keeps one connection open across batches of mail
+ * When the server advertises PIPELINING (RFC 2920) a batch costs one round trip
+ * per message: each message's MAIL, RCPT and DATA go out together, and the
+ * reply to its body is only read once the next message's commands are sent.
+ * Otherwise it falls back to one command per round trip. Bodies are sent as 8-bit UTF-8
+ * text with line endings normalised to CRLF and leading dots doubled.
+ */
+public class SmtpClient implements AutoCloseable {
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    private static final int READ_TIMEOUT_MILLIS = 60_000;
+
+    private final String host;
+    private final int port;
+    private final String clientName;
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private boolean pipelining;
+    private final Deque<String> early = new ArrayDeque<>(); // replies read before they were asked for
+    private long connections;
+
+    /**
+     * One message to send; content is the full message, headers included
+     */
+    public static class Mail {
+        public final String sender;
+        public final String recipient;
+        public final byte[] content;
+
+        public Mail(String sender, String recipient, byte[] content) {
+            this.sender = sender;
+            this.recipient = recipient;
+            this.content = content;
+        }
+    }
+
+    public SmtpClient(String host, int port, String clientName) {
+        this.host = host;
+        this.port = port;
+        this.clientName = clientName;
+    }
+
+    public boolean isConnected() {
+        return socket != null && !socket.isClosed();
+    }
+
+    public boolean isPipelining() {
+        return pipelining;
+    }
+
+    // Connections opened so far; stays at 1 while the connection is reused
+    public long getConnections() {
+        return connections;
+    }
+
+    /**
+     * Send a batch, connecting first if needed
+     * @return the server's final reply to each message, in order; 2xx means accepted
+     * @throws IOException if the connection fails, leaving the client disconnected
+     */
+    public List<String> send(List<Mail> batch) throws IOException {
+        try {
+            if (!isConnected()) {
+                connect();
+            }
+            return transact(batch);
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+    }
+
+    private void connect() throws IOException {
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+        socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+        socket.setTcpNoDelay(true);
+        in = new BufferedInputStream(socket.getInputStream(), 8192);
+        out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        early.clear();
+        pipelining = false;
+        connections++;
+        expect(reply(), "greeting");
+        command("EHLO " + clientName);
+        String ehlo = reply();
+        if (code(ehlo) == 250) {
+            pipelining = ehlo.toUpperCase().contains("PIPELINING");
+        } else {
+            command("HELO " + clientName);
+            expect(reply(), "HELO");
+        }
+    }
+
+    private List<String> transact(List<Mail> batch) throws IOException {
+        List<String> results = new ArrayList<>(batch.size());
+        boolean reset = false;      // a rejected transaction is cleared with RSET before the next
+        boolean awaitingEnd = false; // the last body's reply is read after the next commands are sent
+        for (Mail mail : batch) {
+            if (reset) {
+                command("RSET");
+            }
+            command("MAIL FROM:<" + mail.sender + ">");
+            command("RCPT TO:<" + mail.recipient + ">");
+            command("DATA");
+            if (awaitingEnd) {
+                results.add(reply());
+                awaitingEnd = false;
+            }
+            if (reset) {
+                reply();
+                reset = false;
+            }
+            String mailReply = reply();
+            String rcptReply = reply();
+            String dataReply = reply();
+            if (code(dataReply) != 354) {
+                results.add(code(mailReply) != 250 ? mailReply : code(rcptReply) >= 300 ? rcptReply : dataReply);
+                reset = true;
+                continue;
+            }
+            if (code(mailReply) != 250 || code(rcptReply) >= 300) {
+                // The server took DATA anyway, so end the empty transaction
+                writeLine(".");
+                reply();
+                results.add(code(mailReply) != 250 ? mailReply : rcptReply);
+                continue;
+            }
+            writeBody(mail.content);
+            if (pipelining) {
+                awaitingEnd = true;
+            } else {
+                results.add(reply());
+            }
+        }
+        if (awaitingEnd) {
+            results.add(reply());
+        }
+        if (reset) {
+            command("RSET");
+            reply();
+        }
+        return results;
+    }
+
+    // Close the connection politely
+    @Override
+    public void close() {
+        if (isConnected()) {
+            try {
+                command("QUIT");
+                out.flush();
+                reply();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+        disconnect();
+    }
+
+    private void disconnect() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do
+            }
+        }
+        socket = null;
+    }
+
+    // With pipelining commands are only buffered; without it each is sent and answered at once
+    private void command(String line) throws IOException {
+        writeLine(line);
+        if (!pipelining) {
+            out.flush();
+            early.add(readReply());
+        }
+    }
+
+    private void writeLine(String line) throws IOException {
+        out.write(line.getBytes(StandardCharsets.UTF_8));
+        out.write('\r');
+        out.write('\n');
+    }
+
+    private void writeBody(byte[] content) throws IOException {
+        boolean lineStart = true;
+        for (int i = 0; i < content.length; i++) {
+            byte b = content[i];
+            if (lineStart && b == '.') {
+                out.write('.');
+            }
+            if (b == '\n') {
+                if (i == 0 || content[i - 1] != '\r') {
+                    out.write('\r');
+                }
+                out.write('\n');
+                lineStart = true;
+                continue;
+            }
+            if (b == '\r' && (i + 1 == content.length || content[i + 1] != '\n')) {
+                out.write('\r');
+                out.write('\n');
+                lineStart = true;
+                continue;
+            }
+            out.write(b);
+            lineStart = false;
+        }
+        if (!lineStart) {
+            out.write('\r');
+            out.write('\n');
+        }
+        writeLine(".");
+    }
+
+    // Next reply in order, flushing pending commands first so the server can answer them
+    private String reply() throws IOException {
+        String queued = early.poll();
+        if (queued != null) {
+            return queued;
+        }
+        out.flush();
+        return readReply();
+    }
+
+    // One reply, joining the lines of a multi-line one
+    private String readReply() throws IOException {
+        StringBuilder reply = new StringBuilder();
+        while (true) {
+            String line = readLine();
+            if (reply.length() > 0) {
+                reply.append('\n');
+            }
+            reply.append(line);
+            if (line.length() < 4 || line.charAt(3) != '-') {
+                return reply.toString();
+            }
+        }
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("Connection closed by " + host + ":" + port);
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString(StandardCharsets.UTF_8.name());
+    }
+
+    private static void expect(String reply, String what) throws IOException {
+        if (code(reply) / 100 != 2) {
+            throw new IOException("Unexpected " + what + " reply: " + reply);
+        }
+    }
+
+    public static int code(String reply) {
+        try {
+            return Integer.parseInt(reply.substring(0, 3));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package utils;
+
+import models.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary snapshot of one entity CSV file, used for fast restarts
+ *
+ * Layout (version 1), all integers big-endian or unsigned varints:
+ *   magic "HCSN", version, source CSV size and mtime, row count,
+ *   column count and names, then one block per column, then a CRC32 of
+ *   everything before it. A column is either plain (length-prefixed UTF-8
+ *   values) or dictionary encoded (distinct values once, then one code per row)
+ *   for low-cardinality columns, including foreign keys. Dictionary columns load
+ *   as one shared String per distinct value.
+ *
+ * A snapshot is only used while the CSV file still has the size and
+ * modification time recorded in it; the CSV stays the interchange format.
+ * load() maps the file in one buffer, so save() gives up on a snapshot that
+ * grows past MAX_SIZE and the next start reads the CSV instead.
+ */
+public class SnapshotFile<T> {
+    private static final int MAGIC = 0x4843534E; // "HCSN"
+    private static final int VERSION = 1;
+    private static final byte PLAIN = 0;
+    private static final byte DICTIONARY = 1;
+    // Dictionary-encode a column only if each distinct value repeats at least this often on average
+    private static final int MIN_ROWS_PER_VALUE = 4;
+    // Columns with more distinct values than this are stored plain
+    private static final int MAX_DICTIONARY_SIZE = 1 << 20;
+    // magic, version, source size, source mtime
+    private static final int HEADER_SIZE = 24;
+    // Largest file one mapped buffer can hold
+    private static final long MAX_SIZE = Integer.MAX_VALUE;
+
+    private final Path path;
+    private final Path source;
+    private final String[] columns;
+    private final Function<T, String[]> toValues;
+    private final Function<String[], T> fromValues;
+
+    public SnapshotFile(String path, String sourceCsv, String[] columns,
+                        Function<T, String[]> toValues, Function<String[], T> fromValues) {
+        this.path = Paths.get(path);
+        this.source = Paths.get(sourceCsv);
+        this.columns = columns;
+        this.toValues = toValues;
+        this.fromValues = fromValues;
+    }
+
+    // ========== ENTITY SNAPSHOTS ==========
+
+    public static SnapshotFile<Patient> patients(String csv) {
+        return new SnapshotFile<>(csv + ".snap", csv, CSVHandler.PATIENTS_HEADER.split(","),
+            p -> new String[]{p.getPatientID(), p.getName(), String.valueOf(p.getAge()), p.getGender(),
+                              p.getContactNumber(), p.getAddress(), p.getMedicalHistory()},
+            v -> new Patient(v[0], v[1], Integer.parseInt(v[2]), v[3], v[4], v[5], v[6]));
+    }
+
+    public static SnapshotFile<Clinician> clinicians(String csv) {
+        return new SnapshotFile<>(csv + ".snap", csv, CSVHandler.CLINICIANS_HEADER.split(","),
+            c -> new String[]{c.getClinicianID(), c.getName(), c.getSpecialization(),
+                              c.getContactNumber(), c.getEmail()},
+            v -> new Clinician(v[0], v[1], v[2], v[3], v[4]));
+    }
+
+    public static SnapshotFile<Appointment> appointments(String csv) {
+        return new SnapshotFile<>(csv + ".snap", csv, CSVHandler.APPOINTMENTS_HEADER.split(","),
+            a -> new String[]{a.getAppointmentID(), a.getPatientID(), a.getClinicianID(),
+                              a.getDate(), a.getTime(), a.getStatus()},
+            v -> new Appointment(v[0], v[1], v[2], v[3], v[4], v[5]));
+    }
+
+    public static SnapshotFile<Prescription> prescriptions(String csv) {
+        return new SnapshotFile<>(csv + ".snap", csv, CSVHandler.PRESCRIPTIONS_HEADER.split(","),
+            p -> new String[]{p.getPrescriptionID(), p.getPatientID(), p.getClinicianID(),
+                              p.getMedication(), p.getDosage(), p.getDate()},
+            v -> new Prescription(v[0], v[1], v[2], v[3], v[4], v[5]));
+    }
+
+    // ========== READ / WRITE ==========
+
+    // True if the snapshot exists and was taken from the current CSV file
+    public boolean isFresh() {
+        if (!Files.exists(path) || !Files.exists(source)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            return in.readInt() == MAGIC && in.readInt() == VERSION
+                && in.readLong() == Files.size(source)
+                && in.readLong() == Files.getLastModifiedTime(source).toMillis();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Load the snapshot, returns null if it is missing, stale or corrupt
+    public List<T> load() {
+        if (!isFresh()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE + Long.BYTES || size > MAX_SIZE) {
+                return null; // too small to be valid, or too large to map at once
+            }
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            ByteBuffer body = in.duplicate();
+            body.limit((int) size - Long.BYTES);
+            crc.update(body);
+            if (in.getLong((int) size - Long.BYTES) != crc.getValue()) {
+                System.err.println("Snapshot checksum mismatch, ignoring " + path);
+                return null;
+            }
+            in.limit((int) size - Long.BYTES);
+            in.position(HEADER_SIZE);
+            int rows = readVarInt(in);
+            int columnCount = readVarInt(in);
+            if (columnCount != columns.length) {
+                return null;
+            }
+            byte[] scratch = new byte[256];
+            for (String column : columns) {
+                if (!column.equals(readString(in, scratch))) {
+                    return null;
+                }
+            }
+            String[][] values = new String[columnCount][];
+            for (int c = 0; c < columnCount; c++) {
+                values[c] = readColumn(in, rows, scratch);
+            }
+            List<T> out = new ArrayList<>(rows);
+            String[] row = new String[columnCount];
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < columnCount; c++) {
+                    row[c] = values[c][r];
+                }
+                out.add(fromValues.apply(row));
+            }
+            return out;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error reading snapshot " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Write a snapshot of the given rows, tagged with the current size and mtime of the CSV file
+    public boolean save(List<T> items) {
+        Path temp = Paths.get(path + ".tmp");
+        try {
+            long sourceSize = Files.size(source);
+            long sourceModified = Files.getLastModifiedTime(source).toMillis();
+            String[][] values = new String[columns.length][items.size()];
+            for (int r = 0; r < items.size(); r++) {
+                String[] row = toValues.apply(items.get(r));
+                for (int c = 0; c < columns.length; c++) {
+                    values[c][r] = row[c];
+                }
+            }
+            try (Output out = new Output(FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))) {
+                out.ensure(HEADER_SIZE);
+                out.buffer.putInt(MAGIC);
+                out.buffer.putInt(VERSION);
+                out.buffer.putLong(sourceSize);
+                out.buffer.putLong(sourceModified);
+                out.writeVarInt(items.size());
+                out.writeVarInt(columns.length);
+                for (String column : columns) {
+                    out.writeString(column);
+                }
+                for (String[] column : values) {
+                    writeColumn(out, column);
+                }
+                out.finish();
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error writing snapshot " + path + ": " + e.getMessage());
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // Overwritten by the next save
+            }
+            return false;
+        }
+    }
+
+    private static void writeColumn(Output out, String[] column) throws IOException {
+        Map<String, Integer> codes = new HashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        int limit = Math.min(column.length / MIN_ROWS_PER_VALUE, MAX_DICTIONARY_SIZE);
+        for (String value : column) {
+            if (!codes.containsKey(value)) {
+                if (dictionary.size() >= limit) {
+                    dictionary = null; // too many distinct values
+                    break;
+                }
+                codes.put(value, dictionary.size());
+                dictionary.add(value);
+            }
+        }
+        if (dictionary == null) {
+            out.ensure(1);
+            out.buffer.put(PLAIN);
+            for (String value : column) {
+                out.writeString(value);
+            }
+            return;
+        }
+        out.ensure(1);
+        out.buffer.put(DICTIONARY);
+        out.writeVarInt(dictionary.size());
+        for (String value : dictionary) {
+            out.writeString(value);
+        }
+        for (String value : column) {
+            out.writeVarInt(codes.get(value));
+        }
+    }
+
+    private static String[] readColumn(ByteBuffer in, int rows, byte[] scratch) throws IOException {
+        String[] column = new String[rows];
+        byte encoding = in.get();
+        if (encoding == PLAIN) {
+            for (int r = 0; r < rows; r++) {
+                column[r] = readString(in, scratch);
+            }
+        } else if (encoding == DICTIONARY) {
+            String[] dictionary = new String[readVarInt(in)];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = readString(in, scratch);
+            }
+            for (int r = 0; r < rows; r++) {
+                column[r] = dictionary[readVarInt(in)];
+            }
+        } else {
+            throw new IOException("Unknown column encoding " + encoding);
+        }
+        return column;
+    }
+
+    private static String readString(ByteBuffer in, byte[] scratch) throws IOException {
+        int length = readVarInt(in);
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        in.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static int readVarInt(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Buffered channel writer that keeps a running CRC32 of everything written
+     */
+    private static final class Output implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        private final CRC32 crc = new CRC32();
+        private long written;
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void writeVarInt(int value) throws IOException {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length);
+            if (bytes.length > buffer.capacity()) {
+                flush();
+                crc.update(bytes);
+                writeFully(ByteBuffer.wrap(bytes));
+                return;
+            }
+            ensure(bytes.length);
+            buffer.put(bytes);
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        private void writeFully(ByteBuffer bytes) throws IOException {
+            written += bytes.remaining();
+            if (written > MAX_SIZE) {
+                throw new IOException("over " + MAX_SIZE + " bytes, too large to load; the CSV file will be read instead");
+            }
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+
+        // Append the checksum of everything written so far
+        void finish() throws IOException {
+            flush();
+            buffer.putLong(crc.getValue());
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
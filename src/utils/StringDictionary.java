@@ -0,0 +1,91 @@
+package utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-column dictionary that makes repeated values share one String instance
+ * Lookups go straight from the raw bytes of a field, so a value that was seen
+ * before costs no String allocation at all. Safe to share between the threads
+ * of a parallel load. Once full it stops growing and just returns new Strings,
+ * so a column that turns out not to repeat cannot blow up the dictionary.
+ */
+public class StringDictionary {
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    private final ConcurrentHashMap<Key, String> values = new ConcurrentHashMap<>();
+    private final int capacity;
+
+    public StringDictionary() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public StringDictionary(int capacity) {
+        this.capacity = capacity;
+    }
+
+    // Shared instance for the UTF-8 bytes in [offset, offset + length)
+    public String intern(byte[] bytes, int offset, int length) {
+        String existing = values.get(new Key(bytes, offset, length));
+        if (existing != null) {
+            return existing;
+        }
+        String value = new String(bytes, offset, length, StandardCharsets.UTF_8);
+        if (values.size() >= capacity) {
+            return value;
+        }
+        String raced = values.putIfAbsent(new Key(Arrays.copyOfRange(bytes, offset, offset + length)), value);
+        return raced != null ? raced : value;
+    }
+
+    // Shared instance equal to value
+    public String intern(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return intern(bytes, 0, bytes.length);
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * Byte-content key; lookups wrap the caller's buffer, stored keys own a copy
+     */
+    private static final class Key {
+        private final byte[] bytes;
+        private final int offset;
+        private final int length;
+        private final int hash;
+
+        Key(byte[] bytes) {
+            this(bytes, 0, bytes.length);
+        }
+
+        Key(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+            int h = 1;
+            for (int i = offset; i < offset + length; i++) {
+                h = 31 * h + bytes[i];
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && Arrays.equals(bytes, offset, offset + length,
+                    other.bytes, other.offset, other.offset + other.length);
+        }
+    }
+}
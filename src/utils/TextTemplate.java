@@ -0,0 +1,161 @@
+package utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plain-text template with {{name}} placeholders, parsed once and rendered many times
+ * Compiling splits the text into literal runs, kept already encoded as UTF-8, and
+ * the fields that fill the gaps. Rendering appends each field into a per-thread
+ * scratch builder and encodes it straight into the caller's buffer, so writing
+ * a letter to a channel allocates nothing per letter.
+ */
+public class TextTemplate<T> {
+    /**
+     * Appends one placeholder's value for an item
+     */
+    public interface Field<T> {
+        void append(T item, StringBuilder out);
+    }
+
+    private static final ThreadLocal<StringBuilder> SCRATCH = ThreadLocal.withInitial(() -> new StringBuilder(256));
+    private static final ThreadLocal<StringBuilder> TEXT = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+    // Parallel arrays, one entry per part: a literal has text and bytes, a placeholder has a field
+    private final String[] literals;
+    private final byte[][] encoded;
+    private final Field<T>[] fields;
+
+    private TextTemplate(List<String> literals, List<Field<T>> fields) {
+        this.literals = literals.toArray(new String[0]);
+        this.encoded = new byte[this.literals.length][];
+        for (int i = 0; i < this.literals.length; i++) {
+            encoded[i] = this.literals[i] != null ? this.literals[i].getBytes(StandardCharsets.UTF_8) : null;
+        }
+        @SuppressWarnings("unchecked") // the list only holds Field<T>
+        Field<T>[] parts = (Field<T>[]) fields.toArray(new Field<?>[0]);
+        this.fields = parts;
+    }
+
+    /**
+     * Parse a template; every placeholder must name one of the fields
+     * @throws IllegalArgumentException for an unknown or unterminated placeholder
+     */
+    public static <T> TextTemplate<T> compile(String text, Map<String, Field<T>> fields) {
+        List<String> literals = new ArrayList<>();
+        List<Field<T>> parts = new ArrayList<>();
+        int at = 0;
+        while (at < text.length()) {
+            int open = text.indexOf("{{", at);
+            if (open < 0) {
+                open = text.length();
+            }
+            if (open > at) {
+                literals.add(text.substring(at, open));
+                parts.add(null);
+            }
+            if (open == text.length()) {
+                break;
+            }
+            int close = text.indexOf("}}", open + 2);
+            if (close < 0) {
+                throw new IllegalArgumentException("Unterminated placeholder at " + open);
+            }
+            String name = text.substring(open + 2, close).trim();
+            Field<T> field = fields.get(name);
+            if (field == null) {
+                throw new IllegalArgumentException("Unknown placeholder {{" + name + "}}");
+            }
+            literals.add(null);
+            parts.add(field);
+            at = close + 2;
+        }
+        return new TextTemplate<>(literals, parts);
+    }
+
+    // Render to a new string, built in a reused per-thread builder
+    public String render(T item) {
+        StringBuilder out = TEXT.get();
+        out.setLength(0);
+        render(item, out);
+        return out.toString();
+    }
+
+    public void render(T item, StringBuilder out) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] == null) {
+                out.append(literals[i]);
+            } else {
+                fields[i].append(item, out);
+            }
+        }
+    }
+
+    /**
+     * Render as UTF-8 into the buffer, writing it to the channel whenever it fills
+     * The buffer is left cleared, with everything written.
+     */
+    public void write(T item, WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        StringBuilder scratch = SCRATCH.get();
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] == null) {
+                putBytes(encoded[i], channel, buffer);
+            } else {
+                scratch.setLength(0);
+                fields[i].append(item, scratch);
+                putChars(scratch, channel, buffer);
+            }
+        }
+        drain(channel, buffer);
+    }
+
+    private static void putBytes(byte[] bytes, WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        int at = 0;
+        while (at < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                drain(channel, buffer);
+            }
+            int n = Math.min(buffer.remaining(), bytes.length - at);
+            buffer.put(bytes, at, n);
+            at += n;
+        }
+    }
+
+    // Hand-rolled UTF-8, so encoding a field needs no CharBuffer or encoder state
+    private static void putChars(CharSequence chars, WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        for (int i = 0; i < chars.length(); i++) {
+            if (buffer.remaining() < 4) {
+                drain(channel, buffer);
+            }
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xc0 | c >> 6)).put((byte) (0x80 | c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < chars.length()
+                    && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, chars.charAt(++i));
+                buffer.put((byte) (0xf0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3f))
+                      .put((byte) (0x80 | cp >> 6 & 0x3f)).put((byte) (0x80 | cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?'); // unpaired, as String.getBytes() does
+            } else {
+                buffer.put((byte) (0xe0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3f)).put((byte) (0x80 | c & 0x3f));
+            }
+        }
+    }
+
+    private static void drain(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,166 @@
+package utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Write-behind saver for entity files
+ * Callers mark a file dirty after each change and return immediately; a background
+ * thread saves it once the burst settles. Changes are coalesced until either the
+ * flush window has passed since the first unsaved change or the batch size is reached.
+ */
+public class WriteBehindFlusher {
+    private final long windowMillis;
+    private final int batchSize;
+    private final ScheduledExecutorService executor;
+    private final Map<String, Target> targets = new LinkedHashMap<>();
+
+    // Metrics, guarded by this
+    private long flushCount;
+    private long totalFlushNanos;
+    private long lastFlushNanos;
+    private long maxFlushNanos;
+
+    /**
+     * @param windowMillis longest time a change may wait before its file is saved
+     * @param batchSize    number of pending changes that triggers an immediate save
+     */
+    public WriteBehindFlusher(long windowMillis, int batchSize) {
+        this.windowMillis = windowMillis;
+        this.batchSize = Math.max(1, batchSize);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "write-behind");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Register a file and how to save it, the saver returns false on failure
+    public synchronized void register(String key, BooleanSupplier saver) {
+        targets.put(key, new Target(saver));
+    }
+
+    // Record one change to a file, schedules a save if none is pending
+    public synchronized void markDirty(String key) {
+        Target target = targets.get(key);
+        target.pending++;
+        if (target.pending >= batchSize) {
+            if (target.scheduled != null && target.scheduled.getDelay(TimeUnit.MILLISECONDS) > 0
+                    && target.scheduled.cancel(false)) {
+                target.scheduled = null;
+            }
+            if (target.scheduled == null) {
+                target.scheduled = executor.schedule(() -> flush(target), 0, TimeUnit.MILLISECONDS);
+            }
+        } else if (target.scheduled == null) {
+            target.scheduled = executor.schedule(() -> flush(target), windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush(Target target) {
+        int flushed;
+        synchronized (this) {
+            flushed = target.pending;
+            target.pending = 0;
+            target.scheduled = null;
+        }
+        if (flushed == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        boolean saved = target.saver.getAsBoolean();
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            flushCount++;
+            totalFlushNanos += elapsed;
+            lastFlushNanos = elapsed;
+            maxFlushNanos = Math.max(maxFlushNanos, elapsed);
+            if (!saved) {
+                // Keep the changes pending and retry after another window
+                target.pending += flushed;
+                if (target.scheduled == null && !executor.isShutdown()) {
+                    target.scheduled = executor.schedule(() -> flush(target), windowMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    // Save every dirty file now and stop the background thread, call at shutdown
+    public void shutdown() {
+        try {
+            executor.submit(() -> {
+                Target[] all;
+                synchronized (this) {
+                    all = targets.values().toArray(new Target[0]);
+                }
+                for (Target target : all) {
+                    flush(target);
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Error flushing pending changes: " + e.getCause());
+        }
+        executor.shutdown();
+    }
+
+    public synchronized Stats getStats() {
+        int queued = 0;
+        int dirty = 0;
+        for (Target target : targets.values()) {
+            queued += target.pending;
+            if (target.pending > 0) {
+                dirty++;
+            }
+        }
+        return new Stats(queued, dirty, flushCount,
+                flushCount == 0 ? 0 : totalFlushNanos / flushCount / 1000,
+                lastFlushNanos / 1000, maxFlushNanos / 1000);
+    }
+
+    /**
+     * Point-in-time flush metrics; latencies are in microseconds
+     */
+    public static class Stats {
+        public final int queueDepth;
+        public final int dirtyFiles;
+        public final long flushCount;
+        public final long averageFlushMicros;
+        public final long lastFlushMicros;
+        public final long maxFlushMicros;
+
+        Stats(int queueDepth, int dirtyFiles, long flushCount,
+              long averageFlushMicros, long lastFlushMicros, long maxFlushMicros) {
+            this.queueDepth = queueDepth;
+            this.dirtyFiles = dirtyFiles;
+            this.flushCount = flushCount;
+            this.averageFlushMicros = averageFlushMicros;
+            this.lastFlushMicros = lastFlushMicros;
+            this.maxFlushMicros = maxFlushMicros;
+        }
+
+        @Override
+        public String toString() {
+            return "WriteBehind{queued=" + queueDepth + ", dirtyFiles=" + dirtyFiles +
+                   ", flushes=" + flushCount + ", avgFlush=" + averageFlushMicros + "us" +
+                   ", lastFlush=" + lastFlushMicros + "us, maxFlush=" + maxFlushMicros + "us}";
+        }
+    }
+
+    private static class Target {
+        final BooleanSupplier saver;
+        int pending;
+        ScheduledFuture<?> scheduled;
+
+        Target(BooleanSupplier saver) {
+            this.saver = saver;
+        }
+    }
+}
@@ -2,15 +2,22 @@ package views;
 
 import controllers.HealthcareController;
 import models.Appointment;
+import models.AppointmentSchedule;
+import models.Clinician;
+import utils.BulkImporter;
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
 import java.awt.*;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 
 public class AppointmentPanel extends JPanel {
     private HealthcareController controller;
     private JTable table;
-    private DefaultTableModel tableModel;
+    private EntityTableModel<Appointment> tableModel;
     
     public AppointmentPanel(HealthcareController controller) {
         this.controller = controller;
@@ -24,13 +31,13 @@ public class AppointmentPanel extends JPanel {
         add(titleLabel, BorderLayout.NORTH);
         
         // Table
-        String[] columns = {"ID", "Patient ID", "Clinician ID", "Date", "Time", "Status"};
-        tableModel = new DefaultTableModel(columns, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
+        tableModel = new EntityTableModel<Appointment>(Appointment::getAppointmentID)
+            .addColumn("ID", Appointment::getAppointmentID)
+            .addColumn("Patient ID", Appointment::getPatientID)
+            .addColumn("Clinician ID", Appointment::getClinicianID)
+            .addColumn("Date", Appointment::getDate)
+            .addColumn("Time", Appointment::getTime)
+            .addColumn("Status", Appointment::getStatus);
         table = new JTable(tableModel);
         table.setRowHeight(25);
         table.getTableHeader().setFont(new Font("Arial", Font.BOLD, 12));
@@ -45,11 +52,15 @@ public class AppointmentPanel extends JPanel {
         JButton btnAdd = createButton("Add Appointment", new Color(46, 204, 113));
         JButton btnEdit = createButton("Edit Appointment", new Color(52, 152, 219));
         JButton btnDelete = createButton("Delete Appointment", new Color(231, 76, 60));
+        JButton btnFindSlot = createButton("Find Free Slot", new Color(26, 188, 156));
+        JButton btnImport = createButton("Import CSV", new Color(155, 89, 182));
         JButton btnRefresh = createButton("Refresh", new Color(149, 165, 166));
         
         buttonPanel.add(btnAdd);
         buttonPanel.add(btnEdit);
         buttonPanel.add(btnDelete);
+        buttonPanel.add(btnFindSlot);
+        buttonPanel.add(btnImport);
         buttonPanel.add(btnRefresh);
         
         add(buttonPanel, BorderLayout.SOUTH);
@@ -58,31 +69,34 @@ public class AppointmentPanel extends JPanel {
         btnAdd.addActionListener(e -> addAppointment());
         btnEdit.addActionListener(e -> editAppointment());
         btnDelete.addActionListener(e -> deleteAppointment());
+        btnFindSlot.addActionListener(e -> findFreeSlot());
+        btnImport.addActionListener(e -> importAppointments(btnImport));
         btnRefresh.addActionListener(e -> refreshTable());
         
-        refreshTable();
+        // Fill the table once the data has loaded, without blocking the event thread
+        addComponentListener(new java.awt.event.ComponentAdapter() {
+            @Override
+            public void componentShown(java.awt.event.ComponentEvent evt) {
+                removeComponentListener(this);
+                controller.getAppointmentsAsync().thenRun(() -> SwingUtilities.invokeLater(AppointmentPanel.this::refreshTable));
+            }
+        });
     }
     
     private void refreshTable() {
-        tableModel.setRowCount(0);
-        List<Appointment> appointments = controller.getAllAppointments();
-        for (Appointment a : appointments) {
-            tableModel.addRow(new Object[]{
-                a.getAppointmentID(),
-                a.getPatientID(),
-                a.getClinicianID(),
-                a.getDate(),
-                a.getTime(),
-                a.getStatus()
-            });
-        }
+        tableModel.setRows(controller.getAllAppointments());
     }
     
     private void addAppointment() {
+        addAppointment("", "", "");
+    }
+    
+    // Add dialog with the clinician, date and time filled in, all may be empty
+    private void addAppointment(String initialClinicianID, String initialDate, String initialTime) {
         JTextField txtPatientID = new JTextField();
-        JTextField txtClinicianID = new JTextField();
-        JTextField txtDate = new JTextField();
-        JTextField txtTime = new JTextField();
+        JTextField txtClinicianID = new JTextField(initialClinicianID);
+        JTextField txtDate = new JTextField(initialDate);
+        JTextField txtTime = new JTextField(initialTime);
         JComboBox<String> cmbStatus = new JComboBox<>(new String[]{"Scheduled", "Completed", "Cancelled"});
         
         Object[] message = {
@@ -109,7 +123,13 @@ public class AppointmentPanel extends JPanel {
             }
             
             Appointment appointment = new Appointment(id, patientID, clinicianID, date, time, status);
-            controller.addAppointment(appointment);
+            List<Appointment> conflicts = controller.bookAppointment(appointment);
+            if (!conflicts.isEmpty()) {
+                if (!confirmDoubleBooking(conflicts)) {
+                    return;
+                }
+                controller.addAppointment(appointment);
+            }
             refreshTable();
             JOptionPane.showMessageDialog(this, "Appointment added successfully!");
         }
@@ -122,7 +142,11 @@ public class AppointmentPanel extends JPanel {
             return;
         }
         
-        Appointment oldAppointment = controller.getAllAppointments().get(selectedRow);
+        Appointment oldAppointment = controller.findAppointmentById(tableModel.getRow(selectedRow).getAppointmentID());
+        if (oldAppointment == null) {
+            refreshTable(); // removed since the table was filled
+            return;
+        }
         
         JTextField txtPatientID = new JTextField(oldAppointment.getPatientID());
         JTextField txtClinicianID = new JTextField(oldAppointment.getClinicianID());
@@ -151,12 +175,81 @@ public class AppointmentPanel extends JPanel {
                 (String) cmbStatus.getSelectedItem()
             );
             
-            controller.updateAppointment(selectedRow, updatedAppointment);
+            List<Appointment> conflicts = controller.rescheduleAppointment(oldAppointment.getAppointmentID(),
+                                                                           updatedAppointment);
+            if (conflicts == null) {
+                refreshTable(); // removed while the dialog was open
+                return;
+            }
+            if (!conflicts.isEmpty()) {
+                if (!confirmDoubleBooking(conflicts)) {
+                    return;
+                }
+                controller.updateAppointmentById(oldAppointment.getAppointmentID(), updatedAppointment);
+            }
             refreshTable();
             JOptionPane.showMessageDialog(this, "Appointment updated successfully!");
         }
     }
     
+    // Earliest free slots for a specialization; picking one opens the add dialog for it
+    private void findFreeSlot() {
+        Set<String> specializations = new TreeSet<>();
+        for (Clinician c : controller.getAllClinicians()) {
+            specializations.add(c.getSpecialization());
+        }
+        JComboBox<String> cmbSpecialization = new JComboBox<>(specializations.toArray(new String[0]));
+        JTextField txtFrom = new JTextField(LocalDate.now().toString());
+        JTextField txtDays = new JTextField("14");
+        JTextField txtLength = new JTextField(String.valueOf(AppointmentSchedule.SLOT_MINUTES));
+        
+        Object[] message = {
+            "Specialization:", cmbSpecialization,
+            "From (YYYY-MM-DD):", txtFrom,
+            "Days to search:", txtDays,
+            "Length (minutes):", txtLength
+        };
+        if (JOptionPane.showConfirmDialog(this, message, "Find Free Slot", JOptionPane.OK_CANCEL_OPTION)
+                != JOptionPane.OK_OPTION) {
+            return;
+        }
+        List<AppointmentSchedule.Slot> slots;
+        try {
+            LocalDate from = LocalDate.parse(txtFrom.getText().trim());
+            LocalDate to = from.plusDays(Integer.parseInt(txtDays.getText().trim()) - 1);
+            slots = controller.findFreeSlots((String) cmbSpecialization.getSelectedItem(), from, to,
+                                             Integer.parseInt(txtLength.getText().trim()), 20);
+        } catch (DateTimeParseException | IllegalArgumentException ex) {
+            JOptionPane.showMessageDialog(this, "Invalid search: " + ex.getMessage());
+            return;
+        }
+        if (slots.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "No free slot in that window.");
+            return;
+        }
+        JList<AppointmentSchedule.Slot> list = new JList<>(slots.toArray(new AppointmentSchedule.Slot[0]));
+        list.setSelectedIndex(0);
+        if (JOptionPane.showConfirmDialog(this, new Object[]{"Earliest free slots:", new JScrollPane(list)},
+                                          "Free Slots", JOptionPane.OK_CANCEL_OPTION) == JOptionPane.OK_OPTION
+                && list.getSelectedValue() != null) {
+            AppointmentSchedule.Slot slot = list.getSelectedValue();
+            addAppointment(slot.clinicianID, slot.date.toString(), slot.getTime());
+        }
+    }
+    
+    // List the overlapping bookings and ask whether to save anyway
+    private boolean confirmDoubleBooking(List<Appointment> conflicts) {
+        StringBuilder sb = new StringBuilder("This overlaps existing appointments:\n");
+        for (Appointment c : conflicts) {
+            sb.append(c.getAppointmentID()).append("  ").append(c.getPatientID()).append(" with ")
+              .append(c.getClinicianID()).append(", ").append(c.getDate()).append(' ').append(c.getTime()).append('\n');
+        }
+        sb.append("\nSave it anyway?");
+        return JOptionPane.showConfirmDialog(this, sb.toString(), "Double Booking",
+                                             JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE)
+               == JOptionPane.YES_OPTION;
+    }
+    
     private void deleteAppointment() {
         int selectedRow = table.getSelectedRow();
         if (selectedRow == -1) {
@@ -170,12 +263,43 @@ public class AppointmentPanel extends JPanel {
             JOptionPane.YES_NO_OPTION);
             
         if (confirm == JOptionPane.YES_OPTION) {
-            controller.deleteAppointment(selectedRow);
+            controller.deleteAppointmentById(tableModel.getRow(selectedRow).getAppointmentID());
             refreshTable();
             JOptionPane.showMessageDialog(this, "Appointment deleted successfully!");
         }
     }
     
+    // Bulk-add appointments from a CSV file off the event thread, then report what was imported and rejected
+    private void importAppointments(JButton btnImport) {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        String path = chooser.getSelectedFile().getPath();
+        btnImport.setEnabled(false);
+        CompletableFuture.supplyAsync(() -> controller.importAppointments(path)).whenComplete((result, error) ->
+            SwingUtilities.invokeLater(() -> {
+                btnImport.setEnabled(true);
+                if (error != null) {
+                    JOptionPane.showMessageDialog(this, "Import failed: " + error.getMessage());
+                    return;
+                }
+                refreshTable();
+                showImportResult(result);
+            }));
+    }
+    
+    private void showImportResult(BulkImporter.Result<Appointment> result) {
+        if (result.errors.isEmpty()) {
+            JOptionPane.showMessageDialog(this, result.toString());
+            return;
+        }
+        JTextArea errors = new JTextArea(String.join("\n", result.errors), 15, 60);
+        errors.setEditable(false);
+        JOptionPane.showMessageDialog(this, new Object[]{result.toString(), new JScrollPane(errors)},
+                                      "Import", JOptionPane.WARNING_MESSAGE);
+    }
+    
     private JButton createButton(String text, Color color) {
         JButton btn = new JButton(text);
         btn.setFont(new Font("Arial", Font.BOLD, 12));
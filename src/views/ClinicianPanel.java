@@ -3,14 +3,12 @@ package views;
 import controllers.HealthcareController;
 import models.Clinician;
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
 import java.awt.*;
-import java.util.List;
 
 public class ClinicianPanel extends JPanel {
     private HealthcareController controller;
     private JTable table;
-    private DefaultTableModel tableModel;
+    private EntityTableModel<Clinician> tableModel;
     
     public ClinicianPanel(HealthcareController controller) {
         this.controller = controller;
@@ -24,13 +22,12 @@ public class ClinicianPanel extends JPanel {
         add(titleLabel, BorderLayout.NORTH);
         
         // Table
-        String[] columns = {"ID", "Name", "Specialization", "Contact", "Email"};
-        tableModel = new DefaultTableModel(columns, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
+        tableModel = new EntityTableModel<Clinician>(Clinician::getClinicianID)
+            .addColumn("ID", Clinician::getClinicianID)
+            .addColumn("Name", Clinician::getName)
+            .addColumn("Specialization", Clinician::getSpecialization)
+            .addColumn("Contact", Clinician::getContactNumber)
+            .addColumn("Email", Clinician::getEmail);
         table = new JTable(tableModel);
         table.setRowHeight(25);
         table.getTableHeader().setFont(new Font("Arial", Font.BOLD, 12));
@@ -60,21 +57,18 @@ public class ClinicianPanel extends JPanel {
         btnDelete.addActionListener(e -> deleteClinician());
         btnRefresh.addActionListener(e -> refreshTable());
         
-        refreshTable();
+        // Fill the table once the data has loaded, without blocking the event thread
+        addComponentListener(new java.awt.event.ComponentAdapter() {
+            @Override
+            public void componentShown(java.awt.event.ComponentEvent evt) {
+                removeComponentListener(this);
+                controller.getCliniciansAsync().thenRun(() -> SwingUtilities.invokeLater(ClinicianPanel.this::refreshTable));
+            }
+        });
     }
     
     private void refreshTable() {
-        tableModel.setRowCount(0);
-        List<Clinician> clinicians = controller.getAllClinicians();
-        for (Clinician c : clinicians) {
-            tableModel.addRow(new Object[]{
-                c.getClinicianID(),
-                c.getName(),
-                c.getSpecialization(),
-                c.getContactNumber(),
-                c.getEmail()
-            });
-        }
+        tableModel.setRows(controller.getAllClinicians());
     }
     
     private void addClinician() {
@@ -118,7 +112,11 @@ public class ClinicianPanel extends JPanel {
             return;
         }
         
-        Clinician oldClinician = controller.getAllClinicians().get(selectedRow);
+        Clinician oldClinician = controller.findClinicianById(tableModel.getRow(selectedRow).getClinicianID());
+        if (oldClinician == null) {
+            refreshTable(); // removed since the table was filled
+            return;
+        }
         
         JTextField txtName = new JTextField(oldClinician.getName());
         JTextField txtSpecialization = new JTextField(oldClinician.getSpecialization());
@@ -143,7 +141,7 @@ public class ClinicianPanel extends JPanel {
                 txtEmail.getText().trim()
             );
             
-            controller.updateClinician(selectedRow, updatedClinician);
+            controller.updateClinicianById(oldClinician.getClinicianID(), updatedClinician);
             refreshTable();
             JOptionPane.showMessageDialog(this, "Clinician updated successfully!");
         }
@@ -162,7 +160,7 @@ public class ClinicianPanel extends JPanel {
             JOptionPane.YES_NO_OPTION);
             
         if (confirm == JOptionPane.YES_OPTION) {
-            controller.deleteClinician(selectedRow);
+            controller.deleteClinicianById(tableModel.getRow(selectedRow).getClinicianID());
             refreshTable();
             JOptionPane.showMessageDialog(this, "Clinician deleted successfully!");
         }
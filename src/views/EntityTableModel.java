@@ -0,0 +1,169 @@
+package views;
+
+import javax.swing.table.AbstractTableModel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Table model that shows a read-only list of entities straight from the controller
+ * Cells are read from the entity when they are painted, so only visible rows cost
+ * anything and no copy of the data is kept. setRows() compares the new list with
+ * the one shown, matching rows by ID, and fires one inserted, updated or deleted
+ * event per run of changed rows instead of rebuilding the table. The stores keep
+ * rows in order and replace an entity to change it, so a row counts as updated
+ * when its object is another one. Reordered lists fall back to a full refresh.
+ */
+public class EntityTableModel<T> extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    private static final int NONE = 0;
+    private static final int INSERTED = 1;
+    private static final int UPDATED = 2;
+    private static final int DELETED = 3;
+
+    private final Function<T, String> idOf;
+    private final List<String> names = new ArrayList<>();
+    private final List<Function<T, Object>> values = new ArrayList<>();
+    private List<T> rows = Collections.emptyList();
+
+    // Pending run of events, fired when the next change does not extend it
+    private int runType = NONE;
+    private int runStart;
+    private int runEnd;
+
+    public EntityTableModel(Function<T, String> idOf) {
+        this.idOf = idOf;
+    }
+
+    public EntityTableModel<T> addColumn(String name, Function<T, Object> value) {
+        names.add(name);
+        values.add(value);
+        return this;
+    }
+
+    public T getRow(int row) {
+        return rows.get(row);
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return names.size();
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return names.get(column);
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        return values.get(column).apply(rows.get(row));
+    }
+
+    /**
+     * Show a new list, which must not change afterwards (a store snapshot)
+     * Call on the event thread.
+     */
+    public void setRows(List<T> newRows) {
+        List<T> oldRows = rows;
+        if (newRows == oldRows) {
+            return;
+        }
+        rows = newRows;
+        if (oldRows.isEmpty() || newRows.isEmpty()) {
+            fireTableDataChanged();
+            return;
+        }
+        // The ID sets are only built once the lists stop lining up, and only from there on
+        Set<String> oldIDs = null;
+        Set<String> newIDs = null;
+        int i = 0;   // next row of the old list
+        int j = 0;   // next row of the new list, and its position in the table as the events are applied
+        while (i < oldRows.size() && j < newRows.size()) {
+            T before = oldRows.get(i);
+            T after = newRows.get(j);
+            String oldID = idOf.apply(before);
+            String newID = idOf.apply(after);
+            if (oldID.equals(newID)) {
+                if (before != after) {
+                    change(UPDATED, j);
+                }
+                i++;
+                j++;
+                continue;
+            }
+            if (oldIDs == null) {
+                oldIDs = ids(oldRows, i);
+                newIDs = ids(newRows, j);
+            }
+            if (!newIDs.contains(oldID)) {
+                change(DELETED, j);
+                i++;
+            } else if (!oldIDs.contains(newID)) {
+                change(INSERTED, j);
+                j++;
+            } else {
+                // Rows moved: nothing smaller than a full refresh describes that
+                runType = NONE;
+                fireTableDataChanged();
+                return;
+            }
+        }
+        for (; i < oldRows.size(); i++) {
+            change(DELETED, j);
+        }
+        for (; j < newRows.size(); j++) {
+            change(INSERTED, j);
+        }
+        flush();
+    }
+
+    // Add one row to the pending run, or fire that run and start another
+    private void change(int type, int row) {
+        if (type == runType && row == (type == DELETED ? runStart : runEnd + 1)) {
+            if (type != DELETED) {
+                runEnd = row;
+            } else {
+                runEnd++;
+            }
+            return;
+        }
+        flush();
+        runType = type;
+        runStart = row;
+        runEnd = row;
+    }
+
+    private void flush() {
+        switch (runType) {
+            case INSERTED:
+                fireTableRowsInserted(runStart, runEnd);
+                break;
+            case UPDATED:
+                fireTableRowsUpdated(runStart, runEnd);
+                break;
+            case DELETED:
+                fireTableRowsDeleted(runStart, runEnd);
+                break;
+            default:
+                break;
+        }
+        runType = NONE;
+    }
+
+    private Set<String> ids(List<T> list, int from) {
+        Set<String> ids = new HashSet<>(Math.max(16, (int) ((list.size() - from) / 0.75f) + 1));
+        for (int i = from; i < list.size(); i++) {
+            ids.add(idOf.apply(list.get(i)));
+        }
+        return ids;
+    }
+}
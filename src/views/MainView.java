@@ -15,6 +15,7 @@ public class MainView extends JFrame {
     
     public MainView() {
         controller = new HealthcareController();
+        controller.startEmailDelivery(); // if -Dhealthcare.smtp=host:port is set
         initializeGUI();
     }
     
@@ -24,6 +25,14 @@ public class MainView extends JFrame {
         setSize(1000, 700);
         setLocationRelativeTo(null);
         
+        // Flush pending changes to the CSV files before the window closes
+        addWindowListener(new java.awt.event.WindowAdapter() {
+            @Override
+            public void windowClosing(java.awt.event.WindowEvent evt) {
+                controller.shutdown();
+            }
+        });
+        
         // Main layout
         setLayout(new BorderLayout());
         
@@ -93,6 +102,7 @@ public class MainView extends JFrame {
                 "Exit Confirmation", 
                 JOptionPane.YES_NO_OPTION);
             if (choice == JOptionPane.YES_OPTION) {
+                controller.shutdown();
                 System.exit(0);
             }
         });
@@ -2,15 +2,15 @@ package views;
 
 import controllers.HealthcareController;
 import models.Patient;
+import utils.BulkImporter;
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
 import java.awt.*;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class PatientPanel extends JPanel {
     private HealthcareController controller;
     private JTable table;
-    private DefaultTableModel tableModel;
+    private EntityTableModel<Patient> tableModel;
     
     public PatientPanel(HealthcareController controller) {
         this.controller = controller;
@@ -24,13 +24,14 @@ public class PatientPanel extends JPanel {
         add(titleLabel, BorderLayout.NORTH);
         
         // Table
-        String[] columns = {"ID", "Name", "Age", "Gender", "Contact", "Address", "Medical History"};
-        tableModel = new DefaultTableModel(columns, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
+        tableModel = new EntityTableModel<Patient>(Patient::getPatientID)
+            .addColumn("ID", Patient::getPatientID)
+            .addColumn("Name", Patient::getName)
+            .addColumn("Age", Patient::getAge)
+            .addColumn("Gender", Patient::getGender)
+            .addColumn("Contact", Patient::getContactNumber)
+            .addColumn("Address", Patient::getAddress)
+            .addColumn("Medical History", Patient::getMedicalHistory);
         table = new JTable(tableModel);
         table.setRowHeight(25);
         table.getTableHeader().setFont(new Font("Arial", Font.BOLD, 12));
@@ -45,11 +46,13 @@ public class PatientPanel extends JPanel {
         JButton btnAdd = createButton("➕ Add Patient", new Color(46, 204, 113));
         JButton btnEdit = createButton("✏️ Edit Patient", new Color(52, 152, 219));
         JButton btnDelete = createButton("🗑️ Delete Patient", new Color(231, 76, 60));
+        JButton btnImport = createButton("📥 Import CSV", new Color(155, 89, 182));
         JButton btnRefresh = createButton("🔄 Refresh", new Color(149, 165, 166));
         
         buttonPanel.add(btnAdd);
         buttonPanel.add(btnEdit);
         buttonPanel.add(btnDelete);
+        buttonPanel.add(btnImport);
         buttonPanel.add(btnRefresh);
         
         add(buttonPanel, BorderLayout.SOUTH);
@@ -58,25 +61,21 @@ public class PatientPanel extends JPanel {
         btnAdd.addActionListener(e -> addPatient());
         btnEdit.addActionListener(e -> editPatient());
         btnDelete.addActionListener(e -> deletePatient());
+        btnImport.addActionListener(e -> importPatients(btnImport));
         btnRefresh.addActionListener(e -> refreshTable());
         
-        refreshTable();
+        // Fill the table once the data has loaded, without blocking the event thread
+        addComponentListener(new java.awt.event.ComponentAdapter() {
+            @Override
+            public void componentShown(java.awt.event.ComponentEvent evt) {
+                removeComponentListener(this);
+                controller.getPatientsAsync().thenRun(() -> SwingUtilities.invokeLater(PatientPanel.this::refreshTable));
+            }
+        });
     }
     
     private void refreshTable() {
-        tableModel.setRowCount(0);
-        List<Patient> patients = controller.getAllPatients();
-        for (Patient p : patients) {
-            tableModel.addRow(new Object[]{
-                p.getPatientID(),
-                p.getName(),
-                p.getAge(),
-                p.getGender(),
-                p.getContactNumber(),
-                p.getAddress(),
-                p.getMedicalHistory()
-            });
-        }
+        tableModel.setRows(controller.getAllPatients());
     }
     
     private void addPatient() {
@@ -130,7 +129,11 @@ public class PatientPanel extends JPanel {
             return;
         }
         
-        Patient oldPatient = controller.getAllPatients().get(selectedRow);
+        Patient oldPatient = controller.findPatientById(tableModel.getRow(selectedRow).getPatientID());
+        if (oldPatient == null) {
+            refreshTable(); // removed since the table was filled
+            return;
+        }
         
         JTextField txtName = new JTextField(oldPatient.getName());
         JTextField txtAge = new JTextField(String.valueOf(oldPatient.getAge()));
@@ -163,7 +166,7 @@ public class PatientPanel extends JPanel {
                     txtHistory.getText().trim()
                 );
                 
-                controller.updatePatient(selectedRow, updatedPatient);
+                controller.updatePatientById(oldPatient.getPatientID(), updatedPatient);
                 refreshTable();
                 JOptionPane.showMessageDialog(this, "Patient updated successfully!");
             } catch (NumberFormatException ex) {
@@ -185,12 +188,43 @@ public class PatientPanel extends JPanel {
             JOptionPane.YES_NO_OPTION);
             
         if (confirm == JOptionPane.YES_OPTION) {
-            controller.deletePatient(selectedRow);
+            controller.deletePatientById(tableModel.getRow(selectedRow).getPatientID());
             refreshTable();
             JOptionPane.showMessageDialog(this, "Patient deleted successfully!");
         }
     }
     
+    // Bulk-add patients from a CSV file off the event thread, then report what was imported and rejected
+    private void importPatients(JButton btnImport) {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        String path = chooser.getSelectedFile().getPath();
+        btnImport.setEnabled(false);
+        CompletableFuture.supplyAsync(() -> controller.importPatients(path)).whenComplete((result, error) ->
+            SwingUtilities.invokeLater(() -> {
+                btnImport.setEnabled(true);
+                if (error != null) {
+                    JOptionPane.showMessageDialog(this, "Import failed: " + error.getMessage());
+                    return;
+                }
+                refreshTable();
+                showImportResult(result);
+            }));
+    }
+    
+    private void showImportResult(BulkImporter.Result<Patient> result) {
+        if (result.errors.isEmpty()) {
+            JOptionPane.showMessageDialog(this, result.toString());
+            return;
+        }
+        JTextArea errors = new JTextArea(String.join("\n", result.errors), 15, 60);
+        errors.setEditable(false);
+        JOptionPane.showMessageDialog(this, new Object[]{result.toString(), new JScrollPane(errors)},
+                                      "Import", JOptionPane.WARNING_MESSAGE);
+    }
+    
     private JButton createButton(String text, Color color) {
         JButton btn = new JButton(text);
         btn.setFont(new Font("Arial", Font.BOLD, 12));
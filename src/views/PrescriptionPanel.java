@@ -3,14 +3,12 @@ package views;
 import controllers.HealthcareController;
 import models.Prescription;
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
 import java.awt.*;
-import java.util.List;
 
 public class PrescriptionPanel extends JPanel {
     private HealthcareController controller;
     private JTable table;
-    private DefaultTableModel tableModel;
+    private EntityTableModel<Prescription> tableModel;
     
     public PrescriptionPanel(HealthcareController controller) {
         this.controller = controller;
@@ -24,13 +22,13 @@ public class PrescriptionPanel extends JPanel {
         add(titleLabel, BorderLayout.NORTH);
         
         // Table
-        String[] columns = {"ID", "Patient ID", "Clinician ID", "Medication", "Dosage", "Date"};
-        tableModel = new DefaultTableModel(columns, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
+        tableModel = new EntityTableModel<Prescription>(Prescription::getPrescriptionID)
+            .addColumn("ID", Prescription::getPrescriptionID)
+            .addColumn("Patient ID", Prescription::getPatientID)
+            .addColumn("Clinician ID", Prescription::getClinicianID)
+            .addColumn("Medication", Prescription::getMedication)
+            .addColumn("Dosage", Prescription::getDosage)
+            .addColumn("Date", Prescription::getDate);
         table = new JTable(tableModel);
         table.setRowHeight(25);
         table.getTableHeader().setFont(new Font("Arial", Font.BOLD, 12));
@@ -60,22 +58,18 @@ public class PrescriptionPanel extends JPanel {
         btnDelete.addActionListener(e -> deletePrescription());
         btnRefresh.addActionListener(e -> refreshTable());
         
-        refreshTable();
+        // Fill the table once the data has loaded, without blocking the event thread
+        addComponentListener(new java.awt.event.ComponentAdapter() {
+            @Override
+            public void componentShown(java.awt.event.ComponentEvent evt) {
+                removeComponentListener(this);
+                controller.getPrescriptionsAsync().thenRun(() -> SwingUtilities.invokeLater(PrescriptionPanel.this::refreshTable));
+            }
+        });
     }
     
     private void refreshTable() {
-        tableModel.setRowCount(0);
-        List<Prescription> prescriptions = controller.getAllPrescriptions();
-        for (Prescription p : prescriptions) {
-            tableModel.addRow(new Object[]{
-                p.getPrescriptionID(),
-                p.getPatientID(),
-                p.getClinicianID(),
-                p.getMedication(),
-                p.getDosage(),
-                p.getDate()
-            });
-        }
+        tableModel.setRows(controller.getAllPrescriptions());
     }
     
     private void addPrescription() {
@@ -122,7 +116,11 @@ public class PrescriptionPanel extends JPanel {
             return;
         }
         
-        Prescription oldPrescription = controller.getAllPrescriptions().get(selectedRow);
+        Prescription oldPrescription = controller.findPrescriptionById(tableModel.getRow(selectedRow).getPrescriptionID());
+        if (oldPrescription == null) {
+            refreshTable(); // removed since the table was filled
+            return;
+        }
         
         JTextField txtPatientID = new JTextField(oldPrescription.getPatientID());
         JTextField txtClinicianID = new JTextField(oldPrescription.getClinicianID());
@@ -150,7 +148,7 @@ public class PrescriptionPanel extends JPanel {
                 txtDate.getText().trim()
             );
             
-            controller.updatePrescription(selectedRow, updatedPrescription);
+            controller.updatePrescriptionById(oldPrescription.getPrescriptionID(), updatedPrescription);
             refreshTable();
             JOptionPane.showMessageDialog(this, "Prescription updated successfully!");
         }
@@ -169,7 +167,7 @@ public class PrescriptionPanel extends JPanel {
             JOptionPane.YES_NO_OPTION);
             
         if (confirm == JOptionPane.YES_OPTION) {
-            controller.deletePrescription(selectedRow);
+            controller.deletePrescriptionById(tableModel.getRow(selectedRow).getPrescriptionID());
             refreshTable();
             JOptionPane.showMessageDialog(this, "Prescription deleted successfully!");
         }
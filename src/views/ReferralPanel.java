@@ -2,15 +2,14 @@ package views;
 
 import controllers.HealthcareController;
 import models.Referral;
+import utils.Outbox;
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
 import java.awt.*;
-import java.util.List;
 
 public class ReferralPanel extends JPanel {
 private HealthcareController controller;
 private JTable table;
-private DefaultTableModel tableModel;
+private EntityTableModel<Referral.ReferralData> tableModel;
     
 public ReferralPanel(HealthcareController controller) {
     this.controller = controller;
@@ -22,13 +21,14 @@ public ReferralPanel(HealthcareController controller) {
         titleLabel.setFont(new Font("Arial", Font.BOLD, 24));
         add(titleLabel, BorderLayout.NORTH);
         
-        String[] columns = {"Referral ID", "Patient ID", "Patient Name", "From", "To", "Timestamp"};
-        tableModel = new DefaultTableModel(columns, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        };
+        tableModel = new EntityTableModel<Referral.ReferralData>(r -> r.referralID)
+            .addColumn("Referral ID", r -> r.referralID)
+            .addColumn("Patient ID", r -> r.patientID)
+            .addColumn("Patient Name", r -> r.patientName)
+            .addColumn("From", r -> r.fromClinicianID)
+            .addColumn("To", r -> r.toClinicianID)
+            .addColumn("Timestamp", r -> r.timestamp.toString())
+            .addColumn("Email", this::emailState);
         table = new JTable(tableModel);
         table.setRowHeight(25);
         table.getTableHeader().setFont(new Font("Arial", Font.BOLD, 12));
@@ -56,18 +56,15 @@ public ReferralPanel(HealthcareController controller) {
     }
     
     private void refreshTable() {
-        tableModel.setRowCount(0);
-        List<Referral.ReferralData> referrals = controller.getAllReferrals();
-        for (Referral.ReferralData r : referrals) {
-            tableModel.addRow(new Object[]{
-                r.referralID,
-                r.patientID,
-                r.patientName,
-                r.fromClinicianID,
-                r.toClinicianID,
-                r.timestamp.toString()
-            });
-        }
+        tableModel.setRows(controller.getAllReferrals());
+        // Delivery moves on without the referral changing, so repaint to read the states again
+        table.repaint();
+    }
+    
+    // Read as the cell is painted
+    private String emailState(Referral.ReferralData r) {
+        Outbox.Message email = controller.getReferralEmailState(r.referralID);
+        return email != null ? email.getState().toString() : "QUEUED";
     }
     
     private void createReferral() {
@@ -75,6 +72,7 @@ public ReferralPanel(HealthcareController controller) {
         JTextField txtPatientName = new JTextField();
         JTextField txtFromClinician = new JTextField();
         JTextField txtToClinician = new JTextField();
+        JTextField txtSpecialization = new JTextField();
         JTextArea txtReason = new JTextArea(5, 20);
         txtReason.setLineWrap(true);
         txtReason.setWrapStyleWord(true);
@@ -85,6 +83,7 @@ public ReferralPanel(HealthcareController controller) {
             "Patient Name:", txtPatientName,
             "From Clinician ID:", txtFromClinician,
             "To Clinician ID:", txtToClinician,
+            "Or least busy clinician of specialization:", txtSpecialization,
             "Referral Reason:", scrollReason
         };
         
@@ -97,20 +96,33 @@ public ReferralPanel(HealthcareController controller) {
             String patientName = txtPatientName.getText().trim();
             String fromClinician = txtFromClinician.getText().trim();
             String toClinician = txtToClinician.getText().trim();
+            String specialization = txtSpecialization.getText().trim();
             String reason = txtReason.getText().trim();
             
             if (patientID.isEmpty() || patientName.isEmpty() || 
-                fromClinician.isEmpty() || toClinician.isEmpty() || reason.isEmpty()) {
-                JOptionPane.showMessageDialog(this, "All fields are required!");
+                fromClinician.isEmpty() || reason.isEmpty() ||
+                (toClinician.isEmpty() && specialization.isEmpty())) {
+                JOptionPane.showMessageDialog(this, "All fields are required, except one of clinician and specialization!");
                 return;
             }
             
-            controller.createReferral(patientID, patientName, fromClinician, 
-                                     toClinician, reason);
+            Referral.ReferralData referral;
+            if (toClinician.isEmpty()) {
+                referral = controller.routeReferral(patientID, patientName, fromClinician,
+                                                   specialization, reason);
+                if (referral == null) {
+                    JOptionPane.showMessageDialog(this, "No clinician has specialization " + specialization + "!");
+                    return;
+                }
+            } else {
+                referral = controller.createReferral(patientID, patientName, fromClinician, 
+                                                    toClinician, reason);
+            }
             refreshTable();
             
             JOptionPane.showMessageDialog(this, 
-                "Referral created successfully!\nEmail file generated in 'output' folder.",
+                "Referral created successfully for clinician " + referral.toClinicianID + "!\n" +
+                "Its email has been queued for delivery.",
                 "Success",
                 JOptionPane.INFORMATION_MESSAGE);
         }
@@ -123,11 +135,10 @@ public ReferralPanel(HealthcareController controller) {
             return;
         }
         
-        List<Referral.ReferralData> referrals = controller.getAllReferrals();
-        Referral.ReferralData selected = referrals.get(selectedRow);
+        Referral.ReferralData selected = tableModel.getRow(selectedRow);
         
-        // Generate email content preview
-        String emailPreview = generateEmailPreview(selected);
+        // Same text as the email file
+        String emailPreview = controller.getReferralEmail(selected);
         
         JTextArea textArea = new JTextArea(emailPreview);
         textArea.setEditable(false);
@@ -142,26 +153,6 @@ public ReferralPanel(HealthcareController controller) {
             JOptionPane.INFORMATION_MESSAGE);
     }
     
-    private String generateEmailPreview(Referral.ReferralData referral) {
-        StringBuilder email = new StringBuilder();
-        email.append("===============================================\n");
-        email.append("         MEDICAL REFERRAL NOTIFICATION\n");
-        email.append("===============================================\n\n");
-        email.append("Referral ID: ").append(referral.referralID).append("\n");
-        email.append("Date & Time: ").append(referral.timestamp).append("\n\n");
-        email.append("TO: Clinician ").append(referral.toClinicianID).append("\n");
-        email.append("FROM: Clinician ").append(referral.fromClinicianID).append("\n\n");
-        email.append("PATIENT INFORMATION:\n");
-        email.append("- Patient ID: ").append(referral.patientID).append("\n");
-        email.append("- Patient Name: ").append(referral.patientName).append("\n\n");
-        email.append("REFERRAL REASON:\n");
-        email.append(referral.reason).append("\n\n");
-        email.append("Please review this referral and schedule an appointment\n");
-        email.append("at your earliest convenience.\n\n");
-        email.append("===============================================\n");
-        return email.toString();
-    }
-    
     private JButton createButton(String text, Color color) {
         JButton btn = new JButton(text);
         btn.setFont(new Font("Arial", Font.BOLD, 12));